@@ -12,5 +12,8 @@ public interface ActorFactory {
   
   /** Allows us to get an ActorRef to the actor responsible for managing session data. */
   public ActorRef getSessionManagerActor();
+  
+  /** Allows us to get an ActorRef to the actor which reconciles the link totals. */
+  public ActorRef getLinkCountActor();
 
 }
@@ -0,0 +1,98 @@
+package actors;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.avaje.ebean.QueryIterator;
+
+import akka.actor.Props;
+import akka.actor.UntypedActor;
+import caching.CacheManager;
+import models.RedirectTarget;
+import models.ShortURL;
+import play.Logger;
+import repos.LinkRepo;
+
+/**
+ * Warms up the redirect cache when the application starts, by loading the redirect targets
+ * of the most-hit links in batches, so that the first requests after a deploy don't all
+ * fall through to the database. The warm-up stops early once its time budget is used up.
+ */
+public class CacheWarmupActor extends UntypedActor {
+
+  private static final Logger.ALogger logger = Logger.of(CacheWarmupActor.class);
+
+  public static Props props(LinkRepo linkRepo, CacheManager cacheManager, int maxLinks, int batchSize, int maxSeconds) {
+    // the warm-up blocks on the database and cache, so it runs on the background pool rather
+    // than on the default dispatcher or the pools that requests need
+    return Props.create(CacheWarmupActor.class, linkRepo, cacheManager, maxLinks, batchSize, maxSeconds)
+        .withDispatcher("contexts.background");
+  }
+
+  private final LinkRepo linkRepo;
+  private final CacheManager cacheManager;
+  private final int maxLinks;
+  private final int batchSize;
+  private final int maxSeconds;
+
+  public CacheWarmupActor(LinkRepo linkRepo, CacheManager cacheManager, int maxLinks, int batchSize, int maxSeconds) {
+    this.linkRepo = linkRepo;
+    this.cacheManager = cacheManager;
+    this.maxLinks = maxLinks;
+    this.batchSize = batchSize;
+    this.maxSeconds = maxSeconds;
+  }
+
+  @Override
+  public void onReceive(Object message) throws Exception {
+    if (message instanceof String && message.equals("Start")) {
+      try {
+        warmUp();
+      } catch (Exception e) {
+        logger.error("Unable to warm up redirect cache", e);
+      } finally {
+        // this is a one-off job
+        getContext().stop(getSelf());
+      }
+    } else {
+      unhandled(message);
+    }
+  }
+
+  /**
+   * Loads the redirect targets of up to maxLinks of the most-hit links into the cache.
+   */
+  protected void warmUp() {
+    long started = System.currentTimeMillis();
+    long deadline = started + maxSeconds * 1000L;
+    List<RedirectTarget> batch = new ArrayList<>(batchSize);
+    int loaded = 0;
+
+    logger.info(String.format("Warming up redirect cache with up to %d links (budget: %d seconds)...", maxLinks, maxSeconds));
+
+    try (QueryIterator<ShortURL> links = linkRepo.iterateMostHitRedirects(maxLinks, batchSize)) {
+      while (links.hasNext()) {
+        batch.add(RedirectTarget.of(links.next()));
+
+        if (batch.size() >= batchSize) {
+          cacheManager.storeRedirects(batch);
+          loaded += batch.size();
+          batch.clear();
+
+          if (System.currentTimeMillis() >= deadline) {
+            logger.info(String.format("Cache warm-up ran out of time after %d links", loaded));
+            return;
+          }
+        }
+      }
+
+      if (!batch.isEmpty()) {
+        cacheManager.storeRedirects(batch);
+        loaded += batch.size();
+      }
+    }
+
+    logger.info(String.format("Cache warm-up loaded %d links in %d ms", loaded, System.currentTimeMillis() - started));
+  }
+
+}
@@ -9,6 +9,9 @@ import scala.concurrent.duration.Duration;
 
 import akka.actor.ActorRef;
 import akka.actor.ActorSystem;
+import caching.CacheManager;
+import counters.HitCounters;
+import play.Configuration;
 import play.Logger;
 import repos.AuthRepo;
 import repos.LinkRepo;
@@ -22,11 +25,13 @@ public class DefaultActorFactory implements ActorFactory {
   private static final Logger.ALogger logger = Logger.of(DefaultActorFactory.class);
   private final ActorRef hitCounterActor;
   private final ActorRef sessionManagerActor;
+  private final ActorRef linkCountActor;
 
   @Inject
-  public DefaultActorFactory(ActorSystem system, LinkRepo linkRepo, AuthRepo authRepo) {
+  public DefaultActorFactory(ActorSystem system, LinkRepo linkRepo, AuthRepo authRepo,
+      HitCounters hitCounters, CacheManager cacheManager, Configuration config) {
     logger.debug("Initialising default actor factory and hit update counter actor...");
-    hitCounterActor = system.actorOf(HitCounterActor.props(linkRepo));
+    hitCounterActor = system.actorOf(HitCounterActor.props(linkRepo, hitCounters, cacheManager));
     system.scheduler().schedule(
         Duration.create(HitCounterActor.UPDATE_INTERVAL, TimeUnit.SECONDS),
         Duration.create(HitCounterActor.UPDATE_INTERVAL, TimeUnit.SECONDS),
@@ -46,6 +51,39 @@ public class DefaultActorFactory implements ActorFactory {
         system.dispatcher(),
         null
         );
+    
+    logger.debug("Initialising link count reconciliation actor...");
+    linkCountActor = system.actorOf(LinkCountActor.props(linkRepo));
+    system.scheduler().schedule(
+        Duration.create(0, TimeUnit.SECONDS),
+        Duration.create(LinkCountActor.UPDATE_INTERVAL, TimeUnit.SECONDS),
+        linkCountActor,
+        "Tick",
+        system.dispatcher(),
+        null
+        );
+    
+    if (config.getBoolean("shrty.cache.negative.enabled", true)) {
+      logger.debug("Initialising short code filter actor...");
+      ActorRef filterActor = system.actorOf(ShortCodeFilterActor.props(linkRepo));
+      system.scheduler().schedule(
+          Duration.create(0, TimeUnit.SECONDS),
+          Duration.create(config.getInt("shrty.cache.negative.rebuildInterval", 3600), TimeUnit.SECONDS),
+          filterActor,
+          "Tick",
+          system.dispatcher(),
+          null
+          );
+    }
+    
+    if (config.getBoolean("shrty.cache.warmup.enabled", true)) {
+      logger.debug("Starting cache warm-up actor...");
+      ActorRef warmupActor = system.actorOf(CacheWarmupActor.props(linkRepo, cacheManager,
+          config.getInt("shrty.cache.warmup.maxLinks", 10000),
+          config.getInt("shrty.cache.warmup.batchSize", 500),
+          config.getInt("shrty.cache.warmup.maxSeconds", 30)));
+      warmupActor.tell("Start", ActorRef.noSender());
+    }
   }
 
   @Override
@@ -58,4 +96,9 @@ public class DefaultActorFactory implements ActorFactory {
     return sessionManagerActor;
   }
 
+  @Override
+  public ActorRef getLinkCountActor() {
+    return linkCountActor;
+  }
+
 }
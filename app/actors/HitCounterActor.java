@@ -1,15 +1,19 @@
 package actors;
 
 import java.util.Date;
+import java.util.Map;
 
 import akka.actor.Props;
 import akka.actor.UntypedActor;
+import caching.CacheManager;
+import counters.HitCounters;
 import play.Logger;
 import repos.LinkRepo;
 
 /**
- * An actor which periodically updates the link hit counts in the database from the cached
- * hit count information.
+ * An actor which periodically pushes the hits counted by this node into the shared hit
+ * counters of the cache system, then drains the shared counters (which include the hits
+ * from all nodes) and adds the resulting deltas to the link hit counts in the database.
  */
 public class HitCounterActor extends UntypedActor {
   
@@ -17,15 +21,19 @@ public class HitCounterActor extends UntypedActor {
   /** The number of seconds to wait between updates to the hit counters. */
   public static final Integer UPDATE_INTERVAL = 10;
   
-  public static Props props(LinkRepo linkRepo) {
-    return Props.create(HitCounterActor.class, linkRepo);
+  public static Props props(LinkRepo linkRepo, HitCounters hitCounters, CacheManager cacheManager) {
+    return Props.create(HitCounterActor.class, linkRepo, hitCounters, cacheManager);
   }
   
   private final LinkRepo linkRepo;
+  private final HitCounters hitCounters;
+  private final CacheManager cacheManager;
   private Date lastUpdate = new Date();
   
-  public HitCounterActor(LinkRepo linkRepo) {
+  public HitCounterActor(LinkRepo linkRepo, HitCounters hitCounters, CacheManager cacheManager) {
     this.linkRepo = linkRepo;
+    this.hitCounters = hitCounters;
+    this.cacheManager = cacheManager;
   }
 
   @Override
@@ -41,8 +49,7 @@ public class HitCounterActor extends UntypedActor {
       
       if (updateDiff >= UPDATE_INTERVAL) {
         logger.debug("Updating hit information for links...");
-        linkRepo.updateHitCountsFromCache();
-        logger.debug("Updated hit count information from cache.");
+        flushHitCounts();
         
         lastUpdate = now;
       }
@@ -51,4 +58,43 @@ public class HitCounterActor extends UntypedActor {
     }
   }
 
+  /**
+   * Moves this node's hits into the shared counters, then drains the shared counters
+   * and persists the deltas. Anything which could not be moved or persisted is put back
+   * so that it is retried on the next tick.
+   */
+  protected void flushHitCounts() {
+    Map<String, Long> local = hitCounters.drain();
+    
+    if (!local.isEmpty()) {
+      try {
+        cacheManager.incrementHitCounts(local);
+      } catch (Exception e) {
+        logger.error("Unable to push hit counts to cache, will retry on next tick", e);
+        local.forEach(hitCounters::add);
+      }
+    }
+    
+    Map<String, Long> deltas;
+    try {
+      deltas = cacheManager.drainHitCounts();
+    } catch (Exception e) {
+      logger.error("Unable to drain hit counts from cache, will retry on next tick", e);
+      return;
+    }
+    
+    if (deltas.isEmpty()) {
+      return;
+    }
+    
+    try {
+      linkRepo.applyHitCountDeltas(deltas);
+      logger.debug(String.format("Updated hit count information for %d short code(s).", deltas.size()));
+    } catch (Exception e) {
+      logger.error("Unable to update hit counts, will retry on next tick", e);
+      // these came out of the shared counters, but this node will retry them itself
+      deltas.forEach(hitCounters::add);
+    }
+  }
+
 }
@@ -0,0 +1,41 @@
+package actors;
+
+import akka.actor.Props;
+import akka.actor.UntypedActor;
+import play.Logger;
+import repos.LinkRepo;
+
+/**
+ * Periodically recounts the links in the database, to correct any drift in the running
+ * link totals kept by this node.
+ */
+public class LinkCountActor extends UntypedActor {
+
+  private static final Logger.ALogger logger = Logger.of(LinkCountActor.class);
+  /** The number of seconds between each reconciliation of the link totals. */
+  public static final Integer UPDATE_INTERVAL = 300;
+
+  public static Props props(LinkRepo linkRepo) {
+    return Props.create(LinkCountActor.class, linkRepo);
+  }
+
+  private final LinkRepo linkRepo;
+
+  public LinkCountActor(LinkRepo linkRepo) {
+    this.linkRepo = linkRepo;
+  }
+
+  @Override
+  public void onReceive(Object message) throws Exception {
+    if (message instanceof String && message.equals("Tick")) {
+      try {
+        linkRepo.reconcileLinkCounts();
+      } catch (Exception e) {
+        logger.error("Unable to reconcile link counts, will retry on next tick", e);
+      }
+    } else {
+      unhandled(message);
+    }
+  }
+
+}
@@ -16,6 +16,11 @@ public class SessionManagerActor extends UntypedActor {
   private static final Logger.ALogger logger = Logger.of(SessionManagerActor.class);
   /** The number of seconds between each session update check. */
   public static final Integer UPDATE_INTERVAL = 10;
+  /**
+   * The number of seconds between each reload of the open sessions' expiry details from the
+   * database, to pick up sessions created on other nodes.
+   */
+  public static final Integer SCHEDULE_INTERVAL = 3600;
   
   public static Props props(AuthRepo authRepo) {
     return Props.create(SessionManagerActor.class, authRepo);
@@ -23,6 +28,7 @@ public class SessionManagerActor extends UntypedActor {
   
   private final AuthRepo authRepo;
   private Date lastUpdate = new Date();
+  private Date lastSchedule = null;
   
   public SessionManagerActor(AuthRepo authRepo) {
     this.authRepo = authRepo;
@@ -37,6 +43,12 @@ public class SessionManagerActor extends UntypedActor {
       // make sure there's at least [UPDATE_INTERVAL] seconds between each update,
       // otherwise skip this tick
       if (updateDiff >= UPDATE_INTERVAL) {
+        if (lastSchedule == null || (now.getTime() - lastSchedule.getTime()) / 1000 >= SCHEDULE_INTERVAL) {
+          logger.debug("Loading open sessions' expiry details...");
+          authRepo.scheduleOpenSessions();
+          lastSchedule = now;
+        }
+        
         logger.debug("Updating session information...");
         authRepo.checkExpiredSessions();
         lastUpdate = now;
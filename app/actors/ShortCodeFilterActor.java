@@ -0,0 +1,41 @@
+package actors;
+
+import akka.actor.Props;
+import akka.actor.UntypedActor;
+import play.Logger;
+import repos.LinkRepo;
+
+/**
+ * Periodically rebuilds the filter of short codes in use from the database, which drops
+ * deleted codes from it and resizes it as the number of links grows.
+ */
+public class ShortCodeFilterActor extends UntypedActor {
+
+  private static final Logger.ALogger logger = Logger.of(ShortCodeFilterActor.class);
+
+  public static Props props(LinkRepo linkRepo) {
+    // the rebuild blocks on the database for a while, so it runs on the background pool rather
+    // than tying up a thread that redirects need
+    return Props.create(ShortCodeFilterActor.class, linkRepo).withDispatcher("contexts.background");
+  }
+
+  private final LinkRepo linkRepo;
+
+  public ShortCodeFilterActor(LinkRepo linkRepo) {
+    this.linkRepo = linkRepo;
+  }
+
+  @Override
+  public void onReceive(Object message) throws Exception {
+    if (message instanceof String && message.equals("Tick")) {
+      try {
+        linkRepo.rebuildShortCodeFilter();
+      } catch (Exception e) {
+        logger.error("Unable to rebuild short code filter, will retry on next tick", e);
+      }
+    } else {
+      unhandled(message);
+    }
+  }
+
+}
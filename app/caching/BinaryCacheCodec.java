@@ -0,0 +1,282 @@
+package caching;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+
+import models.RedirectTarget;
+import models.Session;
+import models.ShortURL;
+import models.User;
+
+/**
+ * Stores cached objects in a compact binary format: variable-length integers for IDs and
+ * counts, epoch milliseconds for dates and length-prefixed UTF-8 for strings. Every
+ * entry starts with a format byte so that entries written by other codecs (or future
+ * versions of this one) are recognised and treated as cache misses.
+ *
+ * Nullable fields are encoded so that zero always means null: strings as (length + 1),
+ * numbers as (zigzag(value) + 1), booleans as 0/1/2.
+ */
+public class BinaryCacheCodec implements CacheCodec {
+
+  protected static final byte URL_FORMAT_V1 = 0x01;
+  protected static final byte SESSION_FORMAT_V1 = 0x02;
+  protected static final byte REDIRECT_FORMAT_V1 = 0x03;
+
+  @Override
+  public byte[] encodeUrl(ShortURL url) {
+    Writer out = new Writer(64 + length(url.getTitle()) + length(url.getUrl()));
+
+    out.writeByte(URL_FORMAT_V1);
+    out.writeLong(url.getId());
+    out.writeString(url.getTitle());
+    out.writeString(url.getShortCode());
+    out.writeString(url.getUrl());
+    out.writeLong(url.getHitCount());
+    out.writeDate(url.getCreated());
+    out.writeUser(url.getCreatedBy());
+    out.writeBoolean(url.getPrimary());
+
+    return out.toByteArray();
+  }
+
+  @Override
+  public ShortURL decodeUrl(byte[] data) {
+    if (data == null || data.length == 0 || data[0] != URL_FORMAT_V1)
+      return null;
+
+    Reader in = new Reader(data, 1);
+    ShortURL url = new ShortURL();
+
+    url.setId(in.readLong());
+    url.setTitle(in.readString());
+    url.setShortCode(in.readString());
+    url.setUrl(in.readString());
+    url.setHitCount(in.readLong());
+    url.setCreated(in.readDate());
+    url.setCreatedBy(in.readUser());
+    url.setPrimary(in.readBoolean());
+
+    return url;
+  }
+
+  @Override
+  public byte[] encodeSession(Session session) {
+    Writer out = new Writer(128);
+
+    out.writeByte(SESSION_FORMAT_V1);
+    out.writeLong(session.getId());
+    out.writeUser(session.getUser());
+    out.writeDate(session.getStarted());
+    out.writeDate(session.getExpires());
+    out.writeString(session.getKey());
+    out.writeBoolean(session.getExpired());
+
+    return out.toByteArray();
+  }
+
+  @Override
+  public Session decodeSession(byte[] data) {
+    if (data == null || data.length == 0 || data[0] != SESSION_FORMAT_V1)
+      return null;
+
+    Reader in = new Reader(data, 1);
+    Session session = new Session();
+
+    session.setId(in.readLong());
+    session.setUser(in.readUser());
+    session.setStarted(in.readDate());
+    session.setExpires(in.readDate());
+    session.setKey(in.readString());
+    session.setExpired(in.readBoolean());
+
+    return session;
+  }
+
+  @Override
+  public byte[] encodeRedirect(RedirectTarget target) {
+    Writer out = new Writer(16 + length(target.getShortCode()) + length(target.getUrl()));
+
+    out.writeByte(REDIRECT_FORMAT_V1);
+    out.writeVarLong(target.getVersion());
+    out.writeString(target.getShortCode());
+    out.writeString(target.getUrl());
+
+    return out.toByteArray();
+  }
+
+  @Override
+  public RedirectTarget decodeRedirect(byte[] data) {
+    if (data == null || data.length == 0 || data[0] != REDIRECT_FORMAT_V1)
+      return null;
+
+    Reader in = new Reader(data, 1);
+    long version = in.readVarLong();
+    String shortCode = in.readString();
+    String url = in.readString();
+
+    return new RedirectTarget(shortCode, url, version);
+  }
+
+  protected static int length(String s) {
+    return (s != null) ? s.length() : 0;
+  }
+
+
+  /**
+   * A minimal, growable byte buffer which knows how to write our field types.
+   */
+  protected static class Writer {
+
+    private byte[] buf;
+    private int pos = 0;
+
+    Writer(int initialSize) {
+      buf = new byte[initialSize];
+    }
+
+    void ensure(int n) {
+      if (pos + n > buf.length) {
+        buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+      }
+    }
+
+    void writeByte(int b) {
+      ensure(1);
+      buf[pos++] = (byte)b;
+    }
+
+    void writeVarLong(long v) {
+      ensure(10);
+      while ((v & ~0x7FL) != 0) {
+        buf[pos++] = (byte)((v & 0x7F) | 0x80);
+        v >>>= 7;
+      }
+      buf[pos++] = (byte)v;
+    }
+
+    void writeLong(Long v) {
+      // zigzag-encode so that small negative numbers stay small too
+      writeVarLong((v == null) ? 0 : ((v << 1) ^ (v >> 63)) + 1);
+    }
+
+    void writeDate(Date d) {
+      writeLong((d != null) ? d.getTime() : null);
+    }
+
+    void writeBoolean(Boolean b) {
+      writeByte((b == null) ? 0 : (b ? 2 : 1));
+    }
+
+    void writeString(String s) {
+      if (s == null) {
+        writeVarLong(0);
+        return;
+      }
+      byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+      writeVarLong(bytes.length + 1);
+      ensure(bytes.length);
+      System.arraycopy(bytes, 0, buf, pos, bytes.length);
+      pos += bytes.length;
+    }
+
+    /** Users are written without their password hash, as with the JSON representation. */
+    void writeUser(User user) {
+      if (user == null) {
+        writeByte(0);
+        return;
+      }
+      writeByte(1);
+      writeLong(user.getId());
+      writeString(user.getFirstName());
+      writeString(user.getLastName());
+      writeString(user.getEmail());
+      writeDate(user.getCreated());
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(buf, pos);
+    }
+
+  }
+
+
+  /**
+   * Reads our field types back from a byte array. Readers are cheap, single-use objects,
+   * which keeps the codec itself stateless and safe to share between threads.
+   */
+  protected static class Reader {
+
+    private final byte[] buf;
+    private int pos;
+
+    Reader(byte[] buf, int offset) {
+      this.buf = buf;
+      this.pos = offset;
+    }
+
+    int readByte() {
+      if (pos >= buf.length)
+        throw new IllegalArgumentException("Truncated cache entry");
+      return buf[pos++] & 0xFF;
+    }
+
+    long readVarLong() {
+      long result = 0;
+      int b, shift = 0;
+      do {
+        if (shift > 63)
+          throw new IllegalArgumentException("Malformed variable-length integer in cache entry");
+        b = readByte();
+        result |= (long)(b & 0x7F) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+      return result;
+    }
+
+    Long readLong() {
+      long v = readVarLong();
+      if (v == 0)
+        return null;
+      v -= 1;
+      return (v >>> 1) ^ -(v & 1);
+    }
+
+    Date readDate() {
+      Long millis = readLong();
+      return (millis != null) ? new Date(millis) : null;
+    }
+
+    Boolean readBoolean() {
+      int b = readByte();
+      return (b == 0) ? null : (b == 2);
+    }
+
+    String readString() {
+      long len = readVarLong();
+      if (len == 0)
+        return null;
+      int n = (int)(len - 1);
+      if (n < 0 || pos + n > buf.length)
+        throw new IllegalArgumentException("Truncated string in cache entry");
+      String s = new String(buf, pos, n, StandardCharsets.UTF_8);
+      pos += n;
+      return s;
+    }
+
+    User readUser() {
+      if (readByte() == 0)
+        return null;
+      User user = new User();
+      user.setId(readLong());
+      user.setFirstName(readString());
+      user.setLastName(readString());
+      user.setEmail(readString());
+      user.setCreated(readDate());
+      return user;
+    }
+
+  }
+
+}
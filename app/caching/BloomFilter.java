@@ -0,0 +1,91 @@
+package caching;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size Bloom filter of strings, which is safe to add to and query from many threads
+ * at once without locking. A Bloom filter can say for certain that a string was never added,
+ * but will occasionally claim that one was added when it wasn't (at roughly the false
+ * positive rate for which it was sized, if no more strings than expected are added).
+ */
+public class BloomFilter {
+
+  private final AtomicLongArray bits;
+  private final long bitCount;
+  private final int hashCount;
+
+  /**
+   * Constructor.
+   * @param expectedInsertions The number of strings expected to be added.
+   * @param falsePositiveRate The desired false positive rate at that number of strings (e.g. 0.01).
+   */
+  public BloomFilter(long expectedInsertions, double falsePositiveRate) {
+    long n = Math.max(1, expectedInsertions);
+    long m = (long)Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+    int words = (int)Math.max(1, (m + 63) / 64);
+
+    bits = new AtomicLongArray(words);
+    bitCount = words * 64L;
+    hashCount = Math.max(1, (int)Math.round((double)bitCount / n * Math.log(2)));
+  }
+
+  /**
+   * Adds the given string to the filter.
+   * @param s
+   */
+  public void add(String s) {
+    long h1 = hash(s);
+    long h2 = mix(h1) | 1;
+
+    for (int i = 0; i < hashCount; i++) {
+      long bit = Math.floorMod(h1 + i * h2, bitCount);
+      int word = (int)(bit >>> 6);
+      long mask = 1L << bit;
+      long current;
+
+      do {
+        current = bits.get(word);
+        if ((current & mask) != 0)
+          break;
+      } while (!bits.compareAndSet(word, current, current | mask));
+    }
+  }
+
+  /**
+   * Checks whether the given string could have been added to the filter.
+   * @param s
+   * @return False if the string was definitely never added.
+   */
+  public boolean mightContain(String s) {
+    long h1 = hash(s);
+    long h2 = mix(h1) | 1;
+
+    for (int i = 0; i < hashCount; i++) {
+      long bit = Math.floorMod(h1 + i * h2, bitCount);
+      if ((bits.get((int)(bit >>> 6)) & (1L << bit)) == 0)
+        return false;
+    }
+    return true;
+  }
+
+  /** 64-bit FNV-1a over the string's characters. */
+  protected static long hash(String s) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < s.length(); i++) {
+      h ^= s.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    return mix(h);
+  }
+
+  /** The MurmurHash3 64-bit finaliser, to spread the bits of a hash. */
+  protected static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+}
@@ -0,0 +1,56 @@
+package caching;
+
+import models.RedirectTarget;
+import models.Session;
+import models.ShortURL;
+
+/**
+ * Converts the objects we keep in external cache systems (such as Redis) to and from
+ * their stored byte representation. Implementations must be thread-safe, as a single
+ * instance is shared by all requests.
+ */
+public interface CacheCodec {
+
+  /**
+   * Converts the given short URL into its cached representation.
+   * @param url
+   * @return
+   */
+  public byte[] encodeUrl(ShortURL url);
+
+  /**
+   * Converts the given cached representation back into a short URL.
+   * @param data
+   * @return The short URL, or null if the data is not in a format this codec understands.
+   */
+  public ShortURL decodeUrl(byte[] data);
+
+  /**
+   * Converts the given session into its cached representation.
+   * @param session
+   * @return
+   */
+  public byte[] encodeSession(Session session);
+
+  /**
+   * Converts the given cached representation back into a session.
+   * @param data
+   * @return The session, or null if the data is not in a format this codec understands.
+   */
+  public Session decodeSession(byte[] data);
+
+  /**
+   * Converts the given redirect target into its cached representation.
+   * @param target
+   * @return
+   */
+  public byte[] encodeRedirect(RedirectTarget target);
+
+  /**
+   * Converts the given cached representation back into a redirect target.
+   * @param data
+   * @return The redirect target, or null if the data is not in a format this codec understands.
+   */
+  public RedirectTarget decodeRedirect(byte[] data);
+
+}
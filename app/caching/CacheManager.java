@@ -1,7 +1,13 @@
 package caching;
 
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+
+import models.RedirectTarget;
 import models.Session;
 import models.ShortURL;
+import play.libs.F;
 
 /**
  * The interface for our cache manager - allows us to swap out different
@@ -9,6 +15,18 @@ import models.ShortURL;
  */
 public interface CacheManager {
   
+  /** The invalidation topic on which changed short codes are broadcast. */
+  public static final String URL_TOPIC = "url";
+  /** The invalidation topic on which ended sessions (whose tokens are revoked) are broadcast. */
+  public static final String SESSION_TOPIC = "session";
+  /**
+   * A topic which is never broadcast, but dispatched locally whenever invalidations from other
+   * nodes may have been missed (e.g. while reconnecting to the cache back-end).
+   */
+  public static final String RESYNC_TOPIC = "resync";
+  /** Separates the keys of an invalidation message which carries more than one key. */
+  public static final String KEY_SEPARATOR = ",";
+  
   /**
    * Stores the specified session in the cache.
    * @param session The session to be stored in cache.
@@ -29,6 +47,15 @@ public interface CacheManager {
    */
   public void removeSession(Session session);
   
+  /**
+   * Extends the lifetime of the cached session with the given key, without rewriting the
+   * session itself.
+   * @param key The session key.
+   * @param expires The new expiry date/time of the session.
+   * @return True if the session was found in the cache (and extended), false otherwise.
+   */
+  public boolean touchSession(String key, Date expires);
+  
   
   /**
    * Stores the specified short URL in the cache.
@@ -49,5 +76,96 @@ public interface CacheManager {
    * @param url The short URL to be removed from the cache.
    */
   public void removeUrl(ShortURL url);
+  
+  /**
+   * Attempts to find the short URLs with the specified short codes in the cache, in as few
+   * round trips to the cache system as possible.
+   * @param codes The short codes for which to search.
+   * @return A map of short codes to the short URLs found (codes not found are left out).
+   */
+  public Map<String, ShortURL> findUrls(Collection<String> codes);
+  
+  /**
+   * Stores all of the specified short URLs in the cache, in as few round trips to the
+   * cache system as possible.
+   * @param urls The short URL objects to be stored.
+   */
+  public void storeUrls(Collection<ShortURL> urls);
+  
+  
+  /**
+   * Stores the specified redirect target (the slim projection of a short URL used by the
+   * redirect path) in the cache, separately from the full short URL.
+   * @param target The redirect target to be stored.
+   * @return The cached redirect target.
+   */
+  public RedirectTarget storeRedirect(RedirectTarget target);
+  
+  /**
+   * Stores all of the specified redirect targets in the cache, in as few round trips to
+   * the cache system as possible.
+   * @param targets The redirect targets to be stored.
+   */
+  public void storeRedirects(Collection<RedirectTarget> targets);
+  
+  /**
+   * Attempts to find the redirect target for the specified short code in the cache.
+   * @param code The short code for which to search.
+   * @return A RedirectTarget object on success, or null if not found.
+   */
+  public RedirectTarget findRedirect(String code);
+  
+  /**
+   * Attempts to find the redirect target for the specified short code without leaving the
+   * JVM (i.e. without any blocking I/O), so that it is safe to call from request threads.
+   * @param code The short code for which to search.
+   * @return A RedirectTarget object on success, or null if not found locally (which does not
+   *         mean that findRedirect won't find it).
+   */
+  public default RedirectTarget findLocalRedirect(String code) {
+    return null;
+  }
+  
+  /**
+   * Removes the redirect target for the specified short code from the cache, if it exists.
+   * @param code The short code whose redirect target is to be removed.
+   */
+  public void removeRedirect(String code);
+
+  
+  
+  /**
+   * Broadcasts the fact that the cached value for the given key has changed to all
+   * nodes sharing this cache system (including this one).
+   * @param topic The invalidation topic (e.g. URL_TOPIC).
+   * @param key The key whose cached value is no longer valid. Several keys may be sent in one
+   *        message by joining them with KEY_SEPARATOR, for topics whose listeners expect it.
+   */
+  public void broadcastInvalidation(String topic, String key);
+  
+  /**
+   * Registers a listener to be called whenever an invalidation is broadcast for the
+   * given topic.
+   * @param topic The invalidation topic to which to listen.
+   * @param listener The callback, which receives the invalidated key.
+   */
+  public void addInvalidationListener(String topic, F.Callback<String> listener);
+
+  
+  
+  /**
+   * Adds the given deltas to the hit counters shared by all nodes using this cache system.
+   * Unlike most cache operations, failures are thrown rather than swallowed, so that the
+   * caller can hold on to the deltas and try again later.
+   * @param deltas A map of short codes to the number of hits to add.
+   */
+  public void incrementHitCounts(Map<String, Long> deltas);
+  
+  /**
+   * Atomically takes all of the hits accumulated in the shared hit counters since they
+   * were last drained (by any node), resetting the counters. Failures are thrown.
+   * @return A map of short codes to the number of hits each received.
+   */
+  public Map<String, Long> drainHitCounts();
 
 }
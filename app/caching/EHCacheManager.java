@@ -1,13 +1,21 @@
 package caching;
 
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
+import counters.HitCounters;
+import models.RedirectTarget;
 import models.Session;
 import models.ShortURL;
 import play.Logger;
 import play.cache.CacheApi;
 import play.cache.NamedCache;
+import play.libs.F;
 import security.SecurityConstants;
 
 /**
@@ -22,6 +30,9 @@ public class EHCacheManager implements CacheManager {
   
   private static final Logger.ALogger logger = Logger.of(EHCacheManager.class);
   private final CacheApi sessionCache, urlCache;
+  private final InvalidationListeners invalidationListeners = new InvalidationListeners();
+  /** Our node is the only one using EHCache, so the shared hit counters can live on the heap. */
+  private final HitCounters hitCounters = new HitCounters();
 
   @Inject
   public EHCacheManager(@NamedCache("session-cache") CacheApi sessionCache,
@@ -52,6 +63,31 @@ public class EHCacheManager implements CacheManager {
     }
   }
 
+  @Override
+  public synchronized boolean touchSession(String key, Date expires) {
+    Session cached = findSession(key);
+    int ttl = secondsUntil(expires);
+    
+    if (cached == null || ttl <= 0)
+      return false;
+    
+    // the entry's own expiry has to be renewed as well, or it would still be evicted on time
+    cached.setExpires(expires);
+    sessionCache.set(key, cached, ttl);
+    return true;
+  }
+
+  /**
+   * Works out the number of seconds from now until the given date, rounded up so that an entry
+   * never expires before the session it holds.
+   */
+  protected static int secondsUntil(Date date) {
+    if (date == null)
+      return 0;
+    long millis = date.getTime() - System.currentTimeMillis();
+    return (millis > 0) ? (int)Math.min(Integer.MAX_VALUE, (millis + 999) / 1000) : 0;
+  }
+
   @Override
   public synchronized ShortURL storeUrl(ShortURL url) {
     urlCache.set(url.getShortCode(), url);
@@ -74,4 +110,85 @@ public class EHCacheManager implements CacheManager {
     }
   }
 
+  @Override
+  public synchronized Map<String, ShortURL> findUrls(Collection<String> codes) {
+    Map<String, ShortURL> result = new HashMap<String, ShortURL>();
+    
+    for (String code: codes) {
+      ShortURL url = findUrl(code);
+      if (url != null) {
+        result.put(code, url);
+      }
+    }
+    
+    return result;
+  }
+
+  @Override
+  public synchronized void storeUrls(Collection<ShortURL> urls) {
+    for (ShortURL url: urls) {
+      urlCache.set(url.getShortCode(), url);
+    }
+    logger.debug(String.format("%d short URL(s) saved in cache", urls.size()));
+  }
+
+  /**
+   * Redirect targets live in the URL cache alongside the full short URLs, under a
+   * prefixed key.
+   */
+  protected String redirectKey(String code) {
+    return String.format("redirect.%s", code);
+  }
+
+  @Override
+  public synchronized RedirectTarget storeRedirect(RedirectTarget target) {
+    urlCache.set(redirectKey(target.getShortCode()), target);
+    return target;
+  }
+
+  @Override
+  public synchronized void storeRedirects(Collection<RedirectTarget> targets) {
+    for (RedirectTarget target: targets) {
+      urlCache.set(redirectKey(target.getShortCode()), target);
+    }
+  }
+
+  @Override
+  public synchronized RedirectTarget findRedirect(String code) {
+    return urlCache.getOrElse(redirectKey(code), () -> null);
+  }
+
+  @Override
+  public RedirectTarget findLocalRedirect(String code) {
+    // EHCache lives on the heap, so this is always a local lookup - and EHCache is thread-safe,
+    // so redirects needn't queue up behind the lock that the other operations share
+    return urlCache.getOrElse(redirectKey(code), () -> null);
+  }
+
+  @Override
+  public synchronized void removeRedirect(String code) {
+    urlCache.remove(redirectKey(code));
+  }
+
+  @Override
+  public void broadcastInvalidation(String topic, String key) {
+    // EHCache is local to this node, so there is no one else to tell
+    invalidationListeners.dispatch(topic, key);
+  }
+
+  @Override
+  public void addInvalidationListener(String topic, F.Callback<String> listener) {
+    invalidationListeners.add(topic, listener);
+  }
+
+  @Override
+  public void incrementHitCounts(Map<String, Long> deltas) {
+    deltas.forEach(hitCounters::add);
+  }
+
+  @Override
+  public Map<String, Long> drainHitCounts() {
+    return hitCounters.drain();
+  }
+
 }
@@ -0,0 +1,49 @@
+package caching;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import play.Logger;
+import play.libs.F;
+
+/**
+ * A simple, thread-safe registry of invalidation listeners, grouped by topic. Cache
+ * managers use this to dispatch incoming invalidation messages.
+ */
+public class InvalidationListeners {
+
+  private static final Logger.ALogger logger = Logger.of(InvalidationListeners.class);
+  private final Map<String, List<F.Callback<String>>> listeners = new ConcurrentHashMap<>();
+
+  /**
+   * Registers the given listener for the specified topic.
+   * @param topic
+   * @param listener
+   */
+  public void add(String topic, F.Callback<String> listener) {
+    listeners.computeIfAbsent(topic, (t) -> new CopyOnWriteArrayList<>()).add(listener);
+  }
+
+  /**
+   * Calls all of the listeners registered for the given topic with the specified key.
+   * A failing listener does not prevent the remaining listeners from being called.
+   * @param topic
+   * @param key
+   */
+  public void dispatch(String topic, String key) {
+    List<F.Callback<String>> topicListeners = listeners.get(topic);
+
+    if (topicListeners != null) {
+      for (F.Callback<String> listener: topicListeners) {
+        try {
+          listener.invoke(key);
+        } catch (Throwable e) {
+          logger.error(String.format("Invalidation listener failed for %s/%s", topic, key), e);
+        }
+      }
+    }
+  }
+
+}
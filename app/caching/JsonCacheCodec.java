@@ -0,0 +1,91 @@
+package caching;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import models.RedirectTarget;
+import models.Session;
+import models.ShortURL;
+import models.json.JsonRedirectTarget;
+import models.json.JsonSession;
+import views.json.JsonShortURL;
+
+/**
+ * Stores cached objects as JSON, exactly as served by the API. This is human-readable
+ * (handy when poking around in Redis), but comparatively large and slow to parse.
+ */
+public class JsonCacheCodec implements CacheCodec {
+
+  /** ObjectMapper instances are thread-safe once configured, so we share one. */
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  @Override
+  public byte[] encodeUrl(ShortURL url) {
+    try {
+      return mapper.writeValueAsBytes(new JsonShortURL(url));
+    } catch (JsonProcessingException e) {
+      throw new IllegalArgumentException("Unable to encode short URL for caching", e);
+    }
+  }
+
+  @Override
+  public ShortURL decodeUrl(byte[] data) {
+    if (!isJson(data))
+      return null;
+
+    try {
+      return new ShortURL(mapper.readValue(data, JsonShortURL.class));
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Unable to decode cached short URL", e);
+    }
+  }
+
+  @Override
+  public byte[] encodeSession(Session session) {
+    try {
+      return mapper.writeValueAsBytes(new JsonSession(session));
+    } catch (JsonProcessingException e) {
+      throw new IllegalArgumentException("Unable to encode session for caching", e);
+    }
+  }
+
+  @Override
+  public Session decodeSession(byte[] data) {
+    if (!isJson(data))
+      return null;
+
+    try {
+      return new Session(mapper.readValue(data, JsonSession.class));
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Unable to decode cached session", e);
+    }
+  }
+
+  @Override
+  public byte[] encodeRedirect(RedirectTarget target) {
+    try {
+      return mapper.writeValueAsBytes(new JsonRedirectTarget(target));
+    } catch (JsonProcessingException e) {
+      throw new IllegalArgumentException("Unable to encode redirect target for caching", e);
+    }
+  }
+
+  @Override
+  public RedirectTarget decodeRedirect(byte[] data) {
+    if (!isJson(data))
+      return null;
+
+    try {
+      return mapper.readValue(data, JsonRedirectTarget.class).toRedirectTarget();
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Unable to decode cached redirect target", e);
+    }
+  }
+
+  protected boolean isJson(byte[] data) {
+    return data != null && data.length > 0 && data[0] == '{';
+  }
+
+}
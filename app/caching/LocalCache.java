@@ -0,0 +1,139 @@
+package caching;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, on-heap cache with least-recently-used eviction and a fixed time-to-live
+ * per entry. The key space is split across a number of independently locked segments
+ * so that concurrent lookups of different keys rarely contend with one another.
+ */
+public class LocalCache<K, V> {
+
+  private static final int SEGMENTS = 16;
+
+  private final Segment<K, V>[] segments;
+  private final long ttlMillis;
+
+  /**
+   * Constructor.
+   * @param maxEntries The maximum number of entries to hold in memory.
+   * @param ttlSeconds The number of seconds for which an entry remains valid (0 means forever).
+   */
+  @SuppressWarnings("unchecked")
+  public LocalCache(int maxEntries, int ttlSeconds) {
+    int perSegment = Math.max(1, maxEntries / SEGMENTS);
+    segments = new Segment[SEGMENTS];
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new Segment<K, V>(perSegment);
+    }
+    ttlMillis = ttlSeconds * 1000L;
+  }
+
+  protected Segment<K, V> segmentFor(K key) {
+    int h = key.hashCode();
+    // spread the hash's high bits, as per HashMap
+    h ^= (h >>> 16);
+    return segments[h & (SEGMENTS - 1)];
+  }
+
+  /**
+   * Attempts to retrieve the value for the given key.
+   * @param key
+   * @return The cached value, or null if not present or expired.
+   */
+  public V get(K key) {
+    Segment<K, V> segment = segmentFor(key);
+
+    synchronized (segment) {
+      Entry<V> entry = segment.get(key);
+      if (entry == null)
+        return null;
+      if (entry.expires != 0 && entry.expires < System.currentTimeMillis()) {
+        segment.remove(key);
+        return null;
+      }
+      return entry.value;
+    }
+  }
+
+  /**
+   * Stores the given value, possibly evicting the least recently used entry.
+   * @param key
+   * @param value
+   */
+  public void put(K key, V value) {
+    Segment<K, V> segment = segmentFor(key);
+    Entry<V> entry = new Entry<V>(value, (ttlMillis > 0) ? System.currentTimeMillis() + ttlMillis : 0);
+
+    synchronized (segment) {
+      segment.put(key, entry);
+    }
+  }
+
+  /**
+   * Removes the entry for the given key, if it exists.
+   * @param key
+   */
+  public void remove(K key) {
+    Segment<K, V> segment = segmentFor(key);
+
+    synchronized (segment) {
+      segment.remove(key);
+    }
+  }
+
+  /**
+   * Removes all entries from the cache.
+   */
+  public void clear() {
+    for (Segment<K, V> segment: segments) {
+      synchronized (segment) {
+        segment.clear();
+      }
+    }
+  }
+
+  /**
+   * Returns the (approximate) number of entries currently held in the cache.
+   */
+  public int size() {
+    int size = 0;
+    for (Segment<K, V> segment: segments) {
+      synchronized (segment) {
+        size += segment.size();
+      }
+    }
+    return size;
+  }
+
+
+  protected static class Entry<V> {
+    final V value;
+    final long expires;
+
+    Entry(V value, long expires) {
+      this.value = value;
+      this.expires = expires;
+    }
+  }
+
+  /**
+   * An access-ordered map which drops its eldest entry when full.
+   */
+  protected static class Segment<K, V> extends LinkedHashMap<K, Entry<V>> {
+    private static final long serialVersionUID = 1L;
+    private final int maxEntries;
+
+    Segment(int maxEntries) {
+      super(16, 0.75f, true);
+      this.maxEntries = maxEntries;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+      return size() > maxEntries;
+    }
+  }
+
+}
@@ -0,0 +1,158 @@
+package caching;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+import models.RedirectTarget;
+import models.Session;
+import models.ShortURL;
+import play.Configuration;
+import play.Logger;
+import play.libs.F;
+
+/**
+ * A cache manager which keeps a bounded set of recently used redirect targets on the
+ * heap in front of another ("backing") cache manager, so that hot short codes can be
+ * resolved without leaving the JVM. Full short URLs and sessions are passed straight
+ * through to the backing cache manager.
+ *
+ * Entries are evicted when the near cache is full, when their time-to-live runs out, or
+ * when an invalidation for their short code is broadcast by any node.
+ */
+public class NearCacheManager implements CacheManager {
+
+  /** The name of the binding for the cache manager sitting behind the near cache. */
+  public static final String BACKING = "backing";
+
+  private static final Logger.ALogger logger = Logger.of(NearCacheManager.class);
+  private final CacheManager backing;
+  private final LocalCache<String, RedirectTarget> redirects;
+
+  @Inject
+  public NearCacheManager(@Named(BACKING) CacheManager backing, Configuration config) {
+    this.backing = backing;
+
+    int maxEntries = config.getInt("shrty.cache.near.maxEntries", 10000);
+    int ttl = config.getInt("shrty.cache.near.ttl", 60);
+    logger.debug(String.format("Starting near cache with up to %d entries, TTL %d second(s)", maxEntries, ttl));
+    redirects = new LocalCache<String, RedirectTarget>(maxEntries, ttl);
+
+    // drop our copy of any short code that changes on any node
+    backing.addInvalidationListener(URL_TOPIC, (String codes) -> {
+      for (String code: codes.split(KEY_SEPARATOR)) {
+        redirects.remove(code);
+        logger.debug(String.format("Evicted short code from near cache: %s", code));
+      }
+    });
+  }
+
+  @Override
+  public Session storeSession(Session session) {
+    return backing.storeSession(session);
+  }
+
+  @Override
+  public Session findSession(String key) {
+    return backing.findSession(key);
+  }
+
+  @Override
+  public void removeSession(Session session) {
+    backing.removeSession(session);
+  }
+
+  @Override
+  public boolean touchSession(String key, Date expires) {
+    return backing.touchSession(key, expires);
+  }
+
+  @Override
+  public ShortURL storeUrl(ShortURL url) {
+    return backing.storeUrl(url);
+  }
+
+  @Override
+  public ShortURL findUrl(String code) {
+    return backing.findUrl(code);
+  }
+
+  @Override
+  public void removeUrl(ShortURL url) {
+    backing.removeUrl(url);
+  }
+
+  @Override
+  public Map<String, ShortURL> findUrls(Collection<String> codes) {
+    return backing.findUrls(codes);
+  }
+
+  @Override
+  public void storeUrls(Collection<ShortURL> urls) {
+    backing.storeUrls(urls);
+  }
+
+  @Override
+  public RedirectTarget storeRedirect(RedirectTarget target) {
+    RedirectTarget result = backing.storeRedirect(target);
+    redirects.put(target.getShortCode(), target);
+    return result;
+  }
+
+  @Override
+  public void storeRedirects(Collection<RedirectTarget> targets) {
+    backing.storeRedirects(targets);
+    for (RedirectTarget target: targets) {
+      redirects.put(target.getShortCode(), target);
+    }
+  }
+
+  @Override
+  public RedirectTarget findRedirect(String code) {
+    RedirectTarget result = redirects.get(code);
+
+    if (result == null) {
+      result = backing.findRedirect(code);
+      if (result != null) {
+        redirects.put(code, result);
+      }
+    }
+
+    return result;
+  }
+
+  @Override
+  public RedirectTarget findLocalRedirect(String code) {
+    return redirects.get(code);
+  }
+
+  @Override
+  public void removeRedirect(String code) {
+    redirects.remove(code);
+    backing.removeRedirect(code);
+  }
+
+  @Override
+  public void broadcastInvalidation(String topic, String key) {
+    backing.broadcastInvalidation(topic, key);
+  }
+
+  @Override
+  public void addInvalidationListener(String topic, F.Callback<String> listener) {
+    backing.addInvalidationListener(topic, listener);
+  }
+
+  @Override
+  public void incrementHitCounts(Map<String, Long> deltas) {
+    backing.incrementHitCounts(deltas);
+  }
+
+  @Override
+  public Map<String, Long> drainHitCounts() {
+    return backing.drainHitCounts();
+  }
+
+}
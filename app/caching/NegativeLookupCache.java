@@ -0,0 +1,160 @@
+package caching;
+
+import java.util.Iterator;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import play.Configuration;
+import play.Logger;
+
+/**
+ * Lets redirects for short codes which don't exist be answered without a database query.
+ * There are two layers: a Bloom filter of all short codes in use (which rules out most codes
+ * that were never created, e.g. from bots scanning for links), and a short-lived cache of codes
+ * which recently weren't found in the database (which catches the rest, such as deleted codes).
+ *
+ * The Bloom filter is periodically rebuilt from the database; until it has been built for the
+ * first time, it rules nothing out. Codes created on any node are added to the filter and
+ * removed from the miss cache as soon as their invalidation is broadcast. If invalidations may
+ * have been missed, the filter is dropped (ruling nothing out) until it is next rebuilt.
+ */
+@Singleton
+public class NegativeLookupCache {
+
+  private static final Logger.ALogger logger = Logger.of(NegativeLookupCache.class);
+  /** The false positive rate for which the Bloom filter is sized. */
+  public static final double FALSE_POSITIVE_RATE = 0.01;
+  /** The minimum number of codes for which to size the Bloom filter, leaving room to grow. */
+  public static final long MIN_EXPECTED_CODES = 100000;
+
+  private final boolean enabled;
+  private final LocalCache<String, Boolean> misses;
+  private volatile BloomFilter codes = null;
+  private volatile BloomFilter building = null;
+  private volatile long resyncs = 0;
+
+  @Inject
+  public NegativeLookupCache(CacheManager cacheManager, Configuration config) {
+    enabled = config.getBoolean("shrty.cache.negative.enabled", true);
+    int maxEntries = config.getInt("shrty.cache.negative.maxEntries", 100000);
+    int ttl = config.getInt("shrty.cache.negative.ttl", 10);
+    misses = new LocalCache<String, Boolean>(maxEntries, ttl);
+
+    // a short code that changes on any node may be a new one
+    cacheManager.addInvalidationListener(CacheManager.URL_TOPIC, (String shortCodes) -> {
+      for (String shortCode: shortCodes.split(CacheManager.KEY_SEPARATOR))
+        add(shortCode);
+    });
+    cacheManager.addInvalidationListener(CacheManager.RESYNC_TOPIC, (String channel) -> reset());
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Checks whether the given short code is known not to exist.
+   * @param shortCode
+   * @param mayBeNew Tells whether a short code could have been created without the filter
+   *        having heard about it yet, in which case the filter's answer isn't trusted (only
+   *        the miss cache is).
+   * @return True if there is definitely no link for the short code.
+   */
+  public boolean isMissing(String shortCode, Predicate<String> mayBeNew) {
+    if (!enabled)
+      return false;
+
+    BloomFilter filter = codes;
+    if (filter != null && !filter.mightContain(shortCode) && !mayBeNew.test(shortCode))
+      return true;
+
+    return misses.get(shortCode) != null;
+  }
+
+  /**
+   * Remembers (for a short while) that the given short code could not be found.
+   * @param shortCode
+   */
+  public void recordMiss(String shortCode) {
+    if (enabled)
+      misses.put(shortCode, Boolean.TRUE);
+  }
+
+  /**
+   * Records that the given short code (now) exists.
+   * @param shortCode
+   */
+  public void add(String shortCode) {
+    misses.remove(shortCode);
+
+    // codes added during a rebuild go into the new filter too, so they aren't lost when it is
+    // swapped in (we check it first, in case the swap happens in between)
+    BloomFilter filter = building;
+    if (filter != null)
+      filter.add(shortCode);
+    filter = codes;
+    if (filter != null)
+      filter.add(shortCode);
+  }
+
+  /**
+   * Drops the Bloom filter (including any being built), since it may be missing codes created
+   * on other nodes. Until the next rebuild, only the miss cache rules codes out.
+   */
+  public void reset() {
+    resyncs++;
+    codes = null;
+    logger.info("Dropped short code filter, as short codes may have been missed");
+  }
+
+  /**
+   * Replaces the Bloom filter with a new one containing all of the short codes in use. The
+   * codes are only read once the new filter is accepting additions, so that any code created
+   * while the rebuild is running ends up in the new filter one way or another. Codes must be
+   * added (or invalidated) after their link has been committed for this to hold.
+   * @param expectedCodes The number of short codes expected (used to size the filter).
+   * @param shortCodes Opens an iterator over all of the short codes in use. If the iterator is
+   *        closeable, it is closed once the rebuild is done.
+   */
+  public synchronized void rebuild(long expectedCodes, Supplier<Iterator<String>> shortCodes) {
+    if (!enabled)
+      return;
+
+    long started = System.currentTimeMillis();
+    long count = 0;
+    // leave room for the codes that will be created before the next rebuild
+    BloomFilter filter = new BloomFilter(Math.max(MIN_EXPECTED_CODES, expectedCodes * 2), FALSE_POSITIVE_RATE);
+    long resyncsBefore = resyncs;
+    building = filter;
+    Iterator<String> iterator = null;
+
+    try {
+      iterator = shortCodes.get();
+      while (iterator.hasNext()) {
+        filter.add(iterator.next());
+        count++;
+      }
+      // a reset during the rebuild means codes may have been missed after we started reading
+      if (resyncs != resyncsBefore) {
+        logger.info("Discarding rebuilt short code filter, as short codes may have been missed");
+        return;
+      }
+      codes = filter;
+    } finally {
+      building = null;
+      if (iterator instanceof AutoCloseable) {
+        try {
+          ((AutoCloseable)iterator).close();
+        } catch (Exception e) {
+          logger.error("Unable to close short code iterator", e);
+        }
+      }
+    }
+
+    logger.debug(String.format("Rebuilt short code filter with %d code(s) in %d ms", count, System.currentTimeMillis() - started));
+  }
+
+}
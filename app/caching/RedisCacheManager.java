@@ -1,11 +1,19 @@
 package caching;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import com.google.inject.Inject;
 
+import metrics.Metrics;
+import models.RedirectTarget;
 import models.Session;
 import models.ShortURL;
-import models.json.JsonSession;
 import play.Configuration;
 import play.Logger;
 import play.inject.ApplicationLifecycle;
@@ -13,7 +21,10 @@ import play.libs.F;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
-import views.json.JsonShortURL;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.util.SafeEncoder;
 
 /**
  * A cache system manager built on top of Redis. This uses the plain and simple
@@ -21,18 +32,60 @@ import views.json.JsonShortURL;
  * checks the configuration file for the address (host/port) of our Redis
  * server, and defaults to localhost:6379 if none was configured.
  * 
+ * Cached objects are converted to bytes by a configurable CacheCodec
+ * (shrty.cache.codec: "binary", the default, or "json").
+ * 
  * @todo Write a clustered Redis version of this cache manager.
  */
 public class RedisCacheManager implements CacheManager {
   
   private static final Logger.ALogger logger = Logger.of(RedisCacheManager.class);
+  /** The Redis pub/sub channel on which invalidations are broadcast to all nodes. */
+  public static final String INVALIDATION_CHANNEL = "shrty.invalidations";
+  /** The number of milliseconds to wait before re-subscribing after losing our connection. */
+  protected static final long RESUBSCRIBE_DELAY = 1000;
+  /** The key of the set of short codes whose hit counters have not been drained yet. */
+  public static final String PENDING_HITS_KEY = "hits.pending";
+  /** The number of seconds for which an untouched hit counter is kept around. */
+  public static final int HIT_COUNTER_EXPIRY = 24*60*60;
+  /** The prefix of the keys of the per-short code hit counters. */
+  public static final String HITS_KEY_PREFIX = "hits.";
+  /**
+   * Takes (and deletes) all of the pending hit counters in one atomic step, so that there's
+   * never any half-drained state left behind in Redis (e.g. if we lose our connection), and
+   * no drained counters linger around as zeroes.
+   */
+  protected static final String DRAIN_HITS_SCRIPT =
+      "local codes = redis.call('SMEMBERS', KEYS[1])\n" +
+      "local result = {}\n" +
+      "for _, code in ipairs(codes) do\n" +
+      "  local key = ARGV[1] .. code\n" +
+      "  local hits = redis.call('GET', key)\n" +
+      "  if hits then\n" +
+      "    redis.call('DEL', key)\n" +
+      "    if hits ~= '0' then\n" +
+      "      result[#result+1] = code\n" +
+      "      result[#result+1] = hits\n" +
+      "    end\n" +
+      "  end\n" +
+      "end\n" +
+      "redis.call('DEL', KEYS[1])\n" +
+      "return result\n";
+  
   private final JedisPool jedisPool;
+  private final CacheCodec codec;
+  private final Metrics metrics;
+  private final InvalidationListeners invalidationListeners = new InvalidationListeners();
+  private final JedisPubSub invalidationSubscriber;
+  private final Thread invalidationThread;
+  private volatile boolean running = true;
   private String redisHost;
   private Integer redisPort;
 
   @Inject
-  public RedisCacheManager(ApplicationLifecycle lifecycle, Configuration config) {
+  public RedisCacheManager(ApplicationLifecycle lifecycle, Configuration config, Metrics metrics) {
     logger.debug("Starting up Redis-based cache manager");
+    this.metrics = metrics;
     
     redisHost = config.getString("shrty.cache.redis.host", null);
     if (redisHost == null) {
@@ -50,12 +103,31 @@ public class RedisCacheManager implements CacheManager {
       logger.debug(String.format("Using configured Redis port: %d", redisPort));
     }
     
+    String codecName = config.getString("shrty.cache.codec", "binary");
+    if (codecName.equals("json")) {
+      logger.debug("Using JSON cache codec");
+      codec = new JsonCacheCodec();
+    } else {
+      logger.debug("Using binary cache codec");
+      codec = new BinaryCacheCodec();
+    }
+    
     // set up the jedis pool for our multithreaded environment
     jedisPool = new JedisPool(new JedisPoolConfig(), redisHost, redisPort);
     
+    // listen for invalidations broadcast by any node (including this one)
+    invalidationSubscriber = new InvalidationSubscriber();
+    invalidationThread = new Thread(this::subscribeToInvalidations, "redis-invalidation-subscriber");
+    invalidationThread.setDaemon(true);
+    invalidationThread.start();
+    
     // we need to destroy our pool when the application stops
     lifecycle.addStopHook(() -> {
       logger.debug("Cleaning up Redis-based cache manager");
+      running = false;
+      if (invalidationSubscriber.isSubscribed()) {
+        invalidationSubscriber.unsubscribe();
+      }
       jedisPool.destroy();
       return F.Promise.pure(null);
     });
@@ -89,6 +161,36 @@ public class RedisCacheManager implements CacheManager {
     }
   }
   
+  /**
+   * Blocks, listening for invalidation messages, until the application stops. The
+   * subscription uses its own dedicated connection rather than one from the pool, and
+   * reconnects if the connection is lost.
+   */
+  protected void subscribeToInvalidations() {
+    while (running) {
+      try (Jedis jedis = new Jedis(redisHost, redisPort)) {
+        logger.debug(String.format("Subscribing to Redis invalidation channel: %s", INVALIDATION_CHANNEL));
+        jedis.subscribe(invalidationSubscriber, INVALIDATION_CHANNEL);
+      } catch (Throwable e) {
+        if (running) {
+          logger.error("Lost Redis invalidation subscription, retrying", e);
+          try {
+            Thread.sleep(RESUBSCRIBE_DELAY);
+          } catch (InterruptedException ie) {
+            return;
+          }
+        }
+      }
+    }
+  }
+  
+  /**
+   * Encodes an invalidation message as "<topic>:<key>".
+   */
+  protected String invalidationMessage(String topic, String key) {
+    return String.format("%s:%s", topic, key);
+  }
+  
   protected String jedisSessionKey(String key) {
     return String.format("session.%s", key);
   }
@@ -97,12 +199,74 @@ public class RedisCacheManager implements CacheManager {
     return String.format("url.%s", shortCode);
   }
   
+  protected String jedisRedirectKey(String shortCode) {
+    return String.format("redirect.%s", shortCode);
+  }
+  
+  protected String jedisHitsKey(String shortCode) {
+    return HITS_KEY_PREFIX + shortCode;
+  }
+  
+  protected byte[] bytes(String key) {
+    return SafeEncoder.encode(key);
+  }
+  
+  /**
+   * Encodes the given short URL, keeping track of how large the encoded entries are.
+   */
+  protected byte[] encodeUrl(ShortURL url) {
+    byte[] data = codec.encodeUrl(url);
+    metrics.counter("cache.codec.url.encoded").increment();
+    metrics.counter("cache.codec.url.bytes").add(data.length);
+    return data;
+  }
+  
+  /**
+   * Decodes the given cached short URL, keeping track of how long decoding takes.
+   */
+  protected ShortURL decodeUrl(byte[] data) {
+    long started = System.nanoTime();
+    ShortURL url = codec.decodeUrl(data);
+    metrics.timer("cache.codec.url.decode").recordSince(started);
+    return url;
+  }
+  
+  protected byte[] encodeSession(Session session) {
+    byte[] data = codec.encodeSession(session);
+    metrics.counter("cache.codec.session.encoded").increment();
+    metrics.counter("cache.codec.session.bytes").add(data.length);
+    return data;
+  }
+  
+  protected Session decodeSession(byte[] data) {
+    long started = System.nanoTime();
+    Session session = codec.decodeSession(data);
+    metrics.timer("cache.codec.session.decode").recordSince(started);
+    return session;
+  }
+  
+  /**
+   * Sessions are stored with a TTL matching their expiry date, so that Redis itself is the
+   * authority on when a cached session expires: this lets touchSession extend a session with
+   * a PEXPIRE, rather than rewriting it. Sessions which have already expired aren't stored.
+   */
   @Override
   public Session storeSession(Session session) {
     return withJedis((Jedis jedis) -> {
       String jk = jedisSessionKey(session.getKey());
-      // convert the session to a JSON object and store its string representation
-      jedis.set(jk, new JsonSession(session).toString());
+      byte[] key = bytes(jk);
+      long ttl = millisUntil(session.getExpires());
+      
+      // without a lifetime left, the key would never expire
+      if (ttl <= 0) {
+        logger.debug(String.format("Not caching expired session at key: %s", jk));
+        return session;
+      }
+      
+      // a single PSETEX, so that the key can never be left without its expiry (this version of
+      // Jedis takes the lifetime as an int, which is far more than a session's lifetime)
+      jedis.psetex(key, (int)Math.min(ttl, Integer.MAX_VALUE), encodeSession(session));
+      
       logger.debug(String.format("Stored serialised session object in Redis cache at key: %s", jk));
       return session;
     });
@@ -111,23 +275,43 @@ public class RedisCacheManager implements CacheManager {
   @Override
   public Session findSession(String key) {
     return withJedis((Jedis jedis) -> {
-      String jk = jedisSessionKey(key);
-      // try to look up the key
-      if (jedis.exists(jk))
-        return new Session(new ObjectMapper().readValue(jedis.get(jk), JsonSession.class));
-      // not found
-      return null;
+      byte[] jk = bytes(jedisSessionKey(key));
+      // fetch the session along with its remaining lifetime in a single round trip
+      Pipeline pipeline = jedis.pipelined();
+      Response<byte[]> value = pipeline.get(jk);
+      Response<Long> ttl = pipeline.pttl(jk);
+      pipeline.sync();
+      
+      Session session = (value.get() != null) ? decodeSession(value.get()) : null;
+      // the TTL reflects any touches since the session was stored
+      if (session != null && ttl.get() != null && ttl.get() > 0) {
+        session.setExpires(new Date(System.currentTimeMillis() + ttl.get()));
+      }
+      return session;
     });
   }
 
+  @Override
+  public boolean touchSession(String key, Date expires) {
+    long ttl = millisUntil(expires);
+    if (ttl <= 0)
+      return false;
+    
+    Boolean touched = withJedis((Jedis jedis) -> jedis.pexpire(bytes(jedisSessionKey(key)), ttl) == 1);
+    return (touched != null) && touched;
+  }
+
+  protected static long millisUntil(Date date) {
+    return (date != null) ? date.getTime() - System.currentTimeMillis() : 0;
+  }
+
   @Override
   public void removeSession(Session session) {
     withJedis((Jedis jedis) -> {
       String jk = jedisSessionKey(session.getKey());
       
       // remove the session data
-      if (jedis.exists(jk)) {
-        jedis.del(jk);
+      if (jedis.del(jk) > 0) {
         logger.debug(String.format("Removed session key from Redis cache: %s", jk));
       }
     });
@@ -137,7 +321,7 @@ public class RedisCacheManager implements CacheManager {
   public ShortURL storeUrl(ShortURL url) {
     return withJedis((Jedis jedis) -> {
       String jk = jedisUrlKey(url.getShortCode());
-      jedis.set(jk, new JsonShortURL(url).toString());
+      jedis.set(bytes(jk), encodeUrl(url));
       logger.debug(String.format("Stored serialised short URL object in Redis cache at key: %s", jk));
       return url;
     });
@@ -146,25 +330,211 @@ public class RedisCacheManager implements CacheManager {
   @Override
   public ShortURL findUrl(String code) {
     return withJedis((Jedis jedis) -> {
-      String jk = jedisUrlKey(code);
-      
       // try to look up the URL
-      if (jedis.exists(jk))
-        return new ShortURL(new ObjectMapper().readValue(jedis.get(jk), JsonShortURL.class));
-      return null;
+      byte[] value = jedis.get(bytes(jedisUrlKey(code)));
+      return (value != null) ? decodeUrl(value) : null;
     });
   }
 
   @Override
   public void removeUrl(ShortURL url) {
     withJedis((Jedis jedis) -> {
-      String jk = jedisUrlKey(url.getShortCode());
-      
-      if (jedis.exists(jk)) {
-        jedis.del(jk);
+      if (jedis.del(jedisUrlKey(url.getShortCode())) > 0) {
         logger.debug(String.format("Removed short URL from Redis cache: %s", url.getShortCode()));
       }
     });
   }
 
+  @Override
+  public Map<String, ShortURL> findUrls(Collection<String> codes) {
+    Map<String, ShortURL> result = new HashMap<String, ShortURL>();
+    
+    if (codes.isEmpty())
+      return result;
+    
+    List<String> codeList = new ArrayList<String>(codes);
+    byte[][] keys = new byte[codeList.size()][];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = bytes(jedisUrlKey(codeList.get(i)));
+    }
+    
+    // fetch all of the URLs in a single round trip
+    List<byte[]> values = withJedis((Jedis jedis) -> jedis.mget(keys));
+    
+    if (values != null) {
+      for (int i = 0; i < values.size(); i++) {
+        if (values.get(i) != null) {
+          try {
+            ShortURL url = decodeUrl(values.get(i));
+            if (url != null) {
+              result.put(codeList.get(i), url);
+            }
+          } catch (Exception e) {
+            logger.error(String.format("Unable to deserialise cached short URL: %s", codeList.get(i)), e);
+          }
+        }
+      }
+    }
+    
+    return result;
+  }
+
+  @Override
+  public void storeUrls(Collection<ShortURL> urls) {
+    if (urls.isEmpty())
+      return;
+    
+    withJedis((Jedis jedis) -> {
+      // send all of the writes in a single pipeline
+      Pipeline pipeline = jedis.pipelined();
+      for (ShortURL url: urls) {
+        pipeline.set(bytes(jedisUrlKey(url.getShortCode())), encodeUrl(url));
+      }
+      pipeline.sync();
+      logger.debug(String.format("Stored %d serialised short URL object(s) in Redis cache", urls.size()));
+    });
+  }
+
+  @Override
+  public RedirectTarget storeRedirect(RedirectTarget target) {
+    return withJedis((Jedis jedis) -> {
+      jedis.set(bytes(jedisRedirectKey(target.getShortCode())), codec.encodeRedirect(target));
+      return target;
+    });
+  }
+
+  @Override
+  public void storeRedirects(Collection<RedirectTarget> targets) {
+    if (targets.isEmpty())
+      return;
+    
+    withJedis((Jedis jedis) -> {
+      Pipeline pipeline = jedis.pipelined();
+      for (RedirectTarget target: targets) {
+        pipeline.set(bytes(jedisRedirectKey(target.getShortCode())), codec.encodeRedirect(target));
+      }
+      pipeline.sync();
+      logger.debug(String.format("Stored %d redirect target(s) in Redis cache", targets.size()));
+    });
+  }
+
+  @Override
+  public RedirectTarget findRedirect(String code) {
+    return withJedis((Jedis jedis) -> {
+      byte[] value = jedis.get(bytes(jedisRedirectKey(code)));
+      if (value == null)
+        return null;
+      
+      long started = System.nanoTime();
+      RedirectTarget target = codec.decodeRedirect(value);
+      metrics.timer("cache.codec.redirect.decode").recordSince(started);
+      return target;
+    });
+  }
+
+  @Override
+  public void removeRedirect(String code) {
+    withJedis((Jedis jedis) -> {
+      jedis.del(jedisRedirectKey(code));
+    });
+  }
+
+  @Override
+  public void broadcastInvalidation(String topic, String key) {
+    withJedis((Jedis jedis) -> {
+      jedis.publish(INVALIDATION_CHANNEL, invalidationMessage(topic, key));
+      logger.debug(String.format("Broadcast invalidation for %s/%s", topic, key));
+    });
+  }
+
+  @Override
+  public void addInvalidationListener(String topic, F.Callback<String> listener) {
+    invalidationListeners.add(topic, listener);
+  }
+
+
+  @Override
+  public void incrementHitCounts(Map<String, Long> deltas) {
+    if (deltas.isEmpty())
+      return;
+    
+    // we deliberately don't use withJedis() here, so that failures reach the caller
+    try (Jedis jedis = jedisPool.getResource()) {
+      Pipeline pipeline = jedis.pipelined();
+      
+      for (Map.Entry<String, Long> delta: deltas.entrySet()) {
+        String jk = jedisHitsKey(delta.getKey());
+        pipeline.incrBy(jk, delta.getValue());
+        pipeline.expire(jk, HIT_COUNTER_EXPIRY);
+        pipeline.sadd(PENDING_HITS_KEY, delta.getKey());
+      }
+      
+      pipeline.sync();
+      logger.debug(String.format("Incremented Redis hit counters for %d short code(s)", deltas.size()));
+    }
+  }
+
+  @Override
+  public Map<String, Long> drainHitCounts() {
+    Map<String, Long> result = new HashMap<String, Long>();
+    Object drained;
+    
+    // we deliberately don't use withJedis() here, so that failures reach the caller
+    try (Jedis jedis = jedisPool.getResource()) {
+      drained = jedis.eval(DRAIN_HITS_SCRIPT, Collections.singletonList(PENDING_HITS_KEY),
+          Collections.singletonList(HITS_KEY_PREFIX));
+    }
+    
+    // the script returns a flat list of short codes and their hits
+    List<?> pairs = (List<?>)drained;
+    for (int i = 0; i + 1 < pairs.size(); i += 2) {
+      result.put((String)pairs.get(i), Long.parseLong((String)pairs.get(i+1)));
+    }
+    
+    logger.debug(String.format("Drained Redis hit counters for %d short code(s)", result.size()));
+    return result;
+  }  
+  
+  /**
+   * Dispatches incoming invalidation messages to our registered listeners.
+   */
+  protected class InvalidationSubscriber extends JedisPubSub {
+    
+    private boolean subscribedBefore = false;
+    
+    @Override
+    public void onMessage(String channel, String message) {
+      int sep = message.indexOf(':');
+      
+      if (sep > 0) {
+        invalidationListeners.dispatch(message.substring(0, sep), message.substring(sep+1));
+      } else {
+        logger.error(String.format("Ignoring malformed invalidation message: %s", message));
+      }
+    }
+
+    @Override
+    public void onPMessage(String pattern, String channel, String message) {}
+
+    @Override
+    public void onSubscribe(String channel, int subscribedChannels) {
+      // anything broadcast while we were reconnecting is lost, so let our listeners know
+      if (subscribedBefore) {
+        logger.info(String.format("Resubscribed to Redis invalidation channel: %s", channel));
+        invalidationListeners.dispatch(RESYNC_TOPIC, channel);
+      }
+      subscribedBefore = true;
+    }
+
+    @Override
+    public void onUnsubscribe(String channel, int subscribedChannels) {}
+
+    @Override
+    public void onPUnsubscribe(String pattern, int subscribedChannels) {}
+
+    @Override
+    public void onPSubscribe(String pattern, int subscribedChannels) {}
+    
+  }
+
 }
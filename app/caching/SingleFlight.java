@@ -0,0 +1,76 @@
+package caching;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+import metrics.Counter;
+
+/**
+ * Makes sure that only one load per key is in progress at a time: if a value is requested
+ * while it is already being loaded, the request shares the result of that load instead of
+ * loading it again. This stops a burst of concurrent cache misses for the same key from
+ * turning into a burst of identical database queries. Requests which share a load don't
+ * occupy a thread while they wait for it.
+ */
+public class SingleFlight<K, V> {
+
+  private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+  private final Counter coalesced;
+
+  /**
+   * Constructor.
+   * @param coalesced Counts the requests which shared another request's load.
+   */
+  public SingleFlight(Counter coalesced) {
+    this.coalesced = coalesced;
+  }
+
+  /**
+   * Loads the value for the given key on the given executor, unless it is already being
+   * loaded, in which case this returns the result of that load.
+   * @param key
+   * @param executor The executor on which to run the loader.
+   * @param loader
+   * @return A future which completes with the value (or the loader's exception).
+   */
+  public CompletableFuture<V> load(K key, Executor executor, Supplier<V> loader) {
+    CompletableFuture<V> mine = new CompletableFuture<>();
+    CompletableFuture<V> existing = inFlight.putIfAbsent(key, mine);
+
+    if (existing != null) {
+      coalesced.increment();
+      return existing;
+    }
+
+    try {
+      executor.execute(() -> {
+        try {
+          mine.complete(loader.get());
+        } catch (Throwable e) {
+          // whatever goes wrong, the requests sharing this load must hear about it
+          mine.completeExceptionally(e);
+        } finally {
+          // later requests should start a fresh load (and will find the value in the cache)
+          inFlight.remove(key, mine);
+        }
+      });
+    } catch (RuntimeException e) {
+      // the executor rejected the load
+      inFlight.remove(key, mine);
+      mine.completeExceptionally(e);
+    }
+
+    return mine;
+  }
+
+  /**
+   * The number of loads currently in progress.
+   * @return
+   */
+  public int size() {
+    return inFlight.size();
+  }
+
+}
@@ -1,8 +1,19 @@
 package controllers;
 
-import java.security.NoSuchAlgorithmException;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.stream.Collectors;
 
+import javax.persistence.PersistenceException;
+
+import com.fasterxml.jackson.databind.JsonNode;
 import com.google.inject.Inject;
 
 import be.objectify.deadbolt.java.actions.SubjectNotPresent;
@@ -11,6 +22,7 @@ import exceptions.AlreadyExistsException;
 import exceptions.DoesNotExistException;
 import exceptions.InvalidPasswordException;
 import forms.SignupForm;
+import metrics.Metrics;
 import models.ShortURL;
 import models.User;
 import models.json.JsonAddShortUrl;
@@ -19,14 +31,26 @@ import models.json.JsonSignup;
 import models.Session;
 import play.Logger;
 import play.data.Form;
+import play.libs.F;
 import play.libs.Json;
 import play.mvc.BodyParser;
+import play.mvc.Http;
 import play.mvc.Result;
 import repos.AuthRepo;
+import repos.LinkCursor;
 import repos.LinkRepo;
+import transfer.ImportExecutor;
+import transfer.ImportReport;
+import transfer.LinkExportFormat;
+import transfer.LinkExportStream;
+import transfer.LinkImporter;
+import views.json.JsonBulkShortUrlResult;
+import views.json.JsonBulkShortUrls;
 import views.json.JsonError;
 import views.json.JsonGenericMessage;
+import views.json.JsonImportReport;
 import views.json.JsonLoginSuccess;
+import views.json.JsonMetrics;
 import views.json.JsonShortURL;
 import views.json.JsonShortURLPage;
 import views.json.JsonUser;
@@ -37,10 +61,20 @@ import views.json.JsonUser;
 public class APIController extends BaseController {
   
   private static final Logger.ALogger logger = Logger.of(APIController.class);
+  /** The maximum size of a bulk link creation request body, in bytes. */
+  private static final int MAX_BULK_BODY_SIZE = 16 * 1024 * 1024;
+  /** The maximum number of links which can be created in a single bulk request. */
+  private static final int MAX_BULK_LINKS = 50000;
+  /** The maximum size of an import request body, in bytes (larger imports can be run from the command line). */
+  private static final int MAX_IMPORT_BODY_SIZE = 512 * 1024 * 1024;
+  private final Metrics metrics;
+  private final ImportExecutor importExecutor;
   
   @Inject
-  public APIController(AuthRepo authRepo, LinkRepo linkRepo) {
+  public APIController(AuthRepo authRepo, LinkRepo linkRepo, Metrics metrics, ImportExecutor importExecutor) {
     super(authRepo, linkRepo);
+    this.metrics = metrics;
+    this.importExecutor = importExecutor;
   }
   
   /**
@@ -48,7 +82,7 @@ public class APIController extends BaseController {
    * @return
    */
   @BodyParser.Of(BodyParser.Json.class)
-  public Result userSignup() {
+  public F.Promise<Result> userSignup() {
     Form<SignupForm> signupForm = Form.form(SignupForm.class);
     SignupForm signup;
     
@@ -58,39 +92,41 @@ public class APIController extends BaseController {
     if (signupForm.hasErrors() || signupForm.hasGlobalErrors()) {
       // report back on the errors
       if (signupForm.error("firstName") != null)
-        return badRequest(Json.toJson(new JsonError("Missing first name in request")));
+        return F.Promise.pure(badRequest(Json.toJson(new JsonError("Missing first name in request"))));
       if (signupForm.error("lastName") != null)
-        return badRequest(Json.toJson(new JsonError("Missing last name in request")));
+        return F.Promise.pure(badRequest(Json.toJson(new JsonError("Missing last name in request"))));
       if (signupForm.error("email") != null)
-        return badRequest(Json.toJson(new JsonError("Missing or invalid email address in request")));
+        return F.Promise.pure(badRequest(Json.toJson(new JsonError("Missing or invalid email address in request"))));
       if (signupForm.error("password") != null)
-        return badRequest(Json.toJson(new JsonError("Missing password in request")));
+        return F.Promise.pure(badRequest(Json.toJson(new JsonError("Missing password in request"))));
       
       // generic bad request error
-      return badRequest(Json.toJson(new JsonError("Invalid request")));
+      return F.Promise.pure(badRequest(Json.toJson(new JsonError("Invalid request"))));
     }
     
     signup = signupForm.get();
     logger.debug(String.format("Received signup request: %s", signup.toString()));
     
-    // try to create the user
-    User user;
-    
-    try {
-      user = authRepo.createUser(signup.getFirstName(), signup.getLastName(),
-          signup.getEmail(), signup.getPassword());
-    } catch (NoSuchAlgorithmException e) {
-      logger.error("Unable to create new user", e);
-      return internalServerError(Json.toJson(new JsonError("Internal server error")));
-    } catch (AlreadyExistsException e) {
-      logger.error("Unable to create new user", e);
-      return badRequest(Json.toJson(new JsonError(String.format("User with e-mail address %s already exists in database", signup.getEmail()))));
-    }
-    
-    logger.debug(String.format("Successfully created user with ID: %d", user.getId()));
+    final String email = signup.getEmail();
     
-    // all's well
-    return ok(Json.toJson(new JsonUser(user)));
+    // try to create the user
+    return authRepo.createUser(signup.getFirstName(), signup.getLastName(), email, signup.getPassword())
+        .<Result>map((User user) -> {
+          logger.debug(String.format("Successfully created user with ID: %d", user.getId()));
+          
+          // all's well
+          return ok(Json.toJson(new JsonUser(user)));
+        })
+        .recover((Throwable e) -> {
+          logger.error("Unable to create new user", e);
+          
+          if (e instanceof AlreadyExistsException)
+            return badRequest(Json.toJson(new JsonError(String.format("User with e-mail address %s already exists in database", email))));
+          if (e instanceof RejectedExecutionException)
+            return status(SERVICE_UNAVAILABLE, Json.toJson(new JsonError("Too many requests - please try again later")));
+          
+          return internalServerError(Json.toJson(new JsonError("Internal server error")));
+        });
   }
   
   
@@ -129,16 +165,21 @@ public class APIController extends BaseController {
   
   
   /**
-   * Allows one to request a paged listing of all of the short URLs via the API.
+   * Allows one to request a paged listing of all of the short URLs via the API. If a cursor is
+   * given (an empty one for the first page), links are paged through by cursor rather than by
+   * page number, which is much cheaper for deep pages.
    * @param query A case-insensitive search string by which to filter URLs.
-   * @param page The page number to retrieve (starting from 0).
+   * @param page The page number to retrieve (starting from 0), when not using cursors.
    * @param pageSize The number of records to retrieve per page.
    * @param sortBy The column by which to sort the records.
    * @param sortDir The direction in which to sort the records (asc|desc).
+   * @param cursor The nextCursor value from the previous page, if using cursors.
+   * @param includeTotal Whether or not to count the total number of matching records.
    * @return
    */
   @SubjectPresent
-  public Result getShortUrls(String query, Integer page, Integer pageSize, String sortBy, String sortDir) {
+  public Result getShortUrls(String query, Integer page, Integer pageSize, String sortBy, String sortDir,
+      String cursor, Boolean includeTotal) {
     // make sure the sortBy field is valid
     if (!sortBy.matches("^(title|shortCode|url|hitCount|created|createdBy)$")) {
       logger.error(String.format("Logging invalid incoming sortBy value: %s", sortBy));
@@ -150,19 +191,70 @@ public class APIController extends BaseController {
       return badRequest(Json.toJson(new JsonError("Invalid sort direction for sortDir")));
     }
     
+    if (pageSize < 1) {
+      return badRequest(Json.toJson(new JsonError("Invalid page size")));
+    }
+    
+    Long total = includeTotal ? linkRepo.getLinkCount(query, page, pageSize, sortBy, sortDir) : null;
+    
+    if (cursor != null) {
+      LinkCursor after;
+      
+      try {
+        after = (cursor.length() > 0) ? LinkCursor.decode(cursor, sortBy) : null;
+      } catch (IllegalArgumentException e) {
+        return badRequest(Json.toJson(new JsonError("Invalid cursor")));
+      }
+      
+      logger.debug(String.format("Getting short URLs after cursor \"%s\", page size %d, sorted by %s %s", cursor, pageSize, sortBy, sortDir));
+      
+      // fetch one more link than we need, to find out whether there's another page
+      List<ShortURL> links = linkRepo.getLinksAfter(query, after, pageSize + 1, sortBy, sortDir);
+      String nextCursor = null;
+      
+      if (links.size() > pageSize) {
+        links = links.subList(0, pageSize);
+        nextCursor = LinkCursor.after(links.get(pageSize - 1), sortBy).encode();
+      }
+      
+      return ok(Json.toJson(new JsonShortURLPage(cursor, nextCursor, pageSize, total, sortBy, sortDir, links)));
+    }
+    
     logger.debug(String.format("Getting short URLs, page %d, page size %d, sorted by %s %s", page, pageSize, sortBy, sortDir));
     
     // try to get the relevant page of links
     return ok(Json.toJson(new JsonShortURLPage(
         page,
         pageSize,
-        linkRepo.getLinkCount(query, page, pageSize, sortBy, sortDir),
+        total,
         sortBy,
         sortDir,
         linkRepo.getLinks(query, page, pageSize, sortBy, sortDir))));
   }
   
   
+  /**
+   * Streams out all of the short URLs in the given format, one per line. The links are read
+   * from a database cursor as the response is sent, so the export uses bounded memory however
+   * many links there are.
+   * @param format The export format (ndjson|csv).
+   * @param includeSecondary Whether or not to include links which are no longer primary.
+   * @return
+   */
+  @SubjectPresent
+  public Result exportShortUrls(String format, Boolean includeSecondary) {
+    LinkExportFormat exportFormat = LinkExportFormat.of(format);
+    
+    if (exportFormat == null) {
+      return badRequest(Json.toJson(new JsonError("Invalid export format (must be ndjson or csv)")));
+    }
+    
+    logger.debug(String.format("Exporting short URLs as %s (including secondary: %s)", format, includeSecondary));
+    response().setHeader(CONTENT_DISPOSITION, String.format("attachment; filename=\"shorturls.%s\"", exportFormat.getExtension()));
+    return ok(new LinkExportStream(linkRepo.iterateLinks(includeSecondary), exportFormat)).as(exportFormat.getContentType());
+  }
+  
+  
   /**
    * Allows one to fetch details about a specific short URL via the API by way of its short code.
    * @param code
@@ -200,14 +292,196 @@ public class APIController extends BaseController {
       return badRequest(Json.toJson(new JsonError("Missing title in request")));
     } else if (addShortUrl.url == null || addShortUrl.url.length() == 0) {
       return badRequest(Json.toJson(new JsonError("Missing URL in request")));
+    } else if (addShortUrl.shortCode != null && addShortUrl.shortCode.length() > 0 &&
+        !LinkRepo.isValidShortCode(addShortUrl.shortCode)) {
+      return badRequest(Json.toJson(new JsonError("Invalid short code in request")));
     }
     
-    ShortURL shortUrl = linkRepo.createLink(addShortUrl.title, addShortUrl.url, addShortUrl.shortCode, session.getUser());
+    ShortURL shortUrl;
+    try {
+      shortUrl = linkRepo.createLink(addShortUrl.title, addShortUrl.url, addShortUrl.shortCode, session.getUser());
+    } catch (IllegalArgumentException e) {
+      return badRequest(Json.toJson(new JsonError(e.getMessage())));
+    }
     logger.debug(String.format("Created short URL: %s", shortUrl.toString()));
     return ok(Json.toJson(new JsonShortURL(shortUrl)));
   }
   
   
+  /**
+   * Allows one to add many short URLs in one go, either as a JSON array or as newline-delimited
+   * JSON (one object per line). Each link is validated separately, and all of the valid ones are
+   * created in a single transaction. The response reports the outcome for each link in the
+   * order in which they were received.
+   */
+  @SubjectPresent
+  @BodyParser.Of(value = BodyParser.TolerantText.class, maxLength = MAX_BULK_BODY_SIZE)
+  public Result addShortUrls() {
+    Session session = getSession();
+    
+    if (session == null) {
+      logger.error("Unable to find session in context data");
+      return internalServerError(Json.toJson(new JsonError("Internal server error")));
+    }
+    
+    String body = request().body().asText();
+    if (body == null || body.trim().length() == 0) {
+      return badRequest(Json.toJson(new JsonError("Missing links in request")));
+    }
+    
+    List<JsonNode> items;
+    try {
+      items = parseBulkItems(body.trim());
+    } catch (RuntimeException e) {
+      return badRequest(Json.toJson(new JsonError("Invalid JSON array in request")));
+    }
+    
+    if (items.size() > MAX_BULK_LINKS) {
+      return badRequest(Json.toJson(new JsonError(String.format("Too many links in request (maximum is %d)", MAX_BULK_LINKS))));
+    }
+    
+    JsonBulkShortUrlResult[] results = new JsonBulkShortUrlResult[items.size()];
+    List<ShortURL> links = new ArrayList<>(items.size());
+    List<Integer> indices = new ArrayList<>(items.size());
+    
+    for (int i = 0; i < items.size(); i++) {
+      JsonNode item = items.get(i);
+      
+      if (item == null || !item.isObject()) {
+        results[i] = new JsonBulkShortUrlResult(i, "Invalid JSON object");
+        continue;
+      }
+      
+      JsonAddShortUrl addShortUrl = Json.fromJson(item, JsonAddShortUrl.class);
+      if (addShortUrl.title == null || addShortUrl.title.length() == 0) {
+        results[i] = new JsonBulkShortUrlResult(i, "Missing title");
+      } else if (addShortUrl.url == null || addShortUrl.url.length() == 0) {
+        results[i] = new JsonBulkShortUrlResult(i, "Missing URL");
+      } else if (addShortUrl.shortCode != null && addShortUrl.shortCode.length() > 0 &&
+          !LinkRepo.isValidShortCode(addShortUrl.shortCode)) {
+        results[i] = new JsonBulkShortUrlResult(i, "Invalid short code");
+      } else {
+        ShortURL link = new ShortURL();
+        link.setTitle(addShortUrl.title);
+        link.setUrl(addShortUrl.url);
+        link.setShortCode((addShortUrl.shortCode != null && addShortUrl.shortCode.length() > 0) ? addShortUrl.shortCode : null);
+        links.add(link);
+        indices.add(i);
+      }
+    }
+    
+    // custom short codes which the allocator could still hand out can't be used either
+    Set<String> reserved = linkRepo.findReservedShortCodes(links.stream()
+        .map(ShortURL::getShortCode)
+        .filter((String code) -> code != null)
+        .collect(Collectors.toList()));
+    if (!reserved.isEmpty()) {
+      for (int i = links.size() - 1; i >= 0; i--) {
+        if (reserved.contains(links.get(i).getShortCode())) {
+          results[indices.get(i)] = new JsonBulkShortUrlResult(indices.get(i), "Reserved short code");
+          links.remove(i);
+          indices.remove(i);
+        }
+      }
+    }
+    
+    try {
+      linkRepo.createLinks(links, session.getUser());
+    } catch (PersistenceException e) {
+      logger.error("Unable to create links in bulk", e);
+      return internalServerError(Json.toJson(new JsonError("Internal server error")));
+    }
+    
+    for (int i = 0; i < links.size(); i++) {
+      results[indices.get(i)] = new JsonBulkShortUrlResult(indices.get(i), links.get(i));
+    }
+    
+    logger.debug(String.format("Created %d short URL(s) in bulk, %d failed", links.size(), items.size() - links.size()));
+    return ok(Json.toJson(new JsonBulkShortUrls(links.size(), items.size() - links.size(), Arrays.asList(results))));
+  }
+  
+  
+  /**
+   * Imports links from a (potentially very large) NDJSON or CSV request body. The body is not
+   * streamed: Play buffers it in full before the action runs, spooling anything beyond its
+   * in-memory limit to a temporary file, so bodies larger than MAX_IMPORT_BODY_SIZE are
+   * turned away (with a 413) rather than allowed to fill the disk. The buffered body is then
+   * read a line at a time on the import thread pool, and the links are created in fixed-size
+   * chunks, so the import's own memory use does not grow with its size. Imports beyond the
+   * pool's capacity are turned away with a 503.
+   * @param format The format of the request body (ndjson|csv).
+   */
+  @SubjectPresent
+  @BodyParser.Of(value = BodyParser.Raw.class, maxLength = MAX_IMPORT_BODY_SIZE)
+  public F.Promise<Result> importShortUrls(String format) {
+    LinkExportFormat importFormat = LinkExportFormat.of(format);
+    Session session = getSession();
+    
+    if (importFormat == null) {
+      return F.Promise.pure(badRequest(Json.toJson(new JsonError("Invalid import format (must be ndjson or csv)"))));
+    }
+    
+    if (session == null) {
+      logger.error("Unable to find session in context data");
+      return F.Promise.pure(internalServerError(Json.toJson(new JsonError("Internal server error"))));
+    }
+    
+    Http.RawBuffer body = request().body().asRaw();
+    if (body == null || body.size() == 0) {
+      return F.Promise.pure(badRequest(Json.toJson(new JsonError("Missing links in request"))));
+    }
+    
+    LinkImporter importer = new LinkImporter(linkRepo, metrics, session.getUser());
+    
+    try {
+      return F.Promise.<Result>promise(() -> {
+        try (BufferedReader reader = Files.newBufferedReader(body.asFile().toPath(), StandardCharsets.UTF_8)) {
+          ImportReport report = importer.importFrom(reader, importFormat);
+          return ok(Json.toJson(new JsonImportReport(report)));
+        } catch (IllegalArgumentException e) {
+          return badRequest(Json.toJson(new JsonError(e.getMessage())));
+        } catch (IOException e) {
+          logger.error("Unable to read import request body", e);
+          return internalServerError(Json.toJson(new JsonError("Internal server error")));
+        }
+      }, importExecutor.executionContext());
+    } catch (RejectedExecutionException e) {
+      logger.warn("Turning away import, as the import thread pool is busy");
+      return F.Promise.pure(status(SERVICE_UNAVAILABLE, Json.toJson(new JsonError("Too many imports running - please try again later"))));
+    }
+  }
+  
+  
+  /**
+   * Splits a bulk request body into its individual items. A body starting with "[" must be a
+   * valid JSON array; anything else is treated as newline-delimited JSON, where a line which
+   * cannot be parsed results in a null item (so that it can be reported on individually).
+   * @param body
+   * @return
+   */
+  protected List<JsonNode> parseBulkItems(String body) {
+    List<JsonNode> items = new ArrayList<>();
+    
+    if (body.startsWith("[")) {
+      Json.parse(body).forEach(items::add);
+      return items;
+    }
+    
+    for (String line: body.split("\\r?\\n")) {
+      if (line.trim().length() == 0)
+        continue;
+      
+      try {
+        items.add(Json.parse(line));
+      } catch (RuntimeException e) {
+        items.add(null);
+      }
+    }
+    
+    return items;
+  }
+  
+  
   /**
    * Allows one to delete short URLs with the specified code.
    * @param code The short code for which to search.
@@ -228,34 +502,37 @@ public class APIController extends BaseController {
    */
   @SubjectNotPresent
   @BodyParser.Of(BodyParser.Json.class)
-  public Result login() {
+  public F.Promise<Result> login() {
     JsonLogin req = Json.fromJson(request().body().asJson(), JsonLogin.class);
     
     if (req.email == null || req.email.length() == 0) {
-      return badRequest(Json.toJson(new JsonError("Missing e-mail address in request")));
+      return F.Promise.pure(badRequest(Json.toJson(new JsonError("Missing e-mail address in request"))));
     } else if (req.password == null || req.password.length() == 0) {
-      return badRequest(Json.toJson(new JsonError("Missing password in request")));
+      return F.Promise.pure(badRequest(Json.toJson(new JsonError("Missing password in request"))));
     }
     
     logger.debug(String.format("Incoming login request for user: %s", req.email));
     
     // attempt to log the user in
-    Session session;
-    
-    try {
-      session = authRepo.login(req.email, req.password, session());
-    } catch (NoSuchAlgorithmException e) {
-      logger.error("Cannot get hash algorithm", e);
-      return internalServerError(Json.toJson(new JsonError("Internal server error")));
-    } catch (DoesNotExistException e) {
-      logger.error(String.format("E-mail address %s does not exist in database", req.email), e);
-      return notFound(Json.toJson(new JsonError(String.format("Cannot find user with e-mail address: %s", req.email))));
-    } catch (InvalidPasswordException e) {
-      return badRequest(Json.toJson(new JsonError("Invalid password")));
-    }
-    
-    logger.debug(String.format("Successfully logged user %s in; session key: %s", req.email, session.getKey()));
-    return ok(Json.toJson(new JsonLoginSuccess(session)));
+    return authRepo.login(req.email, req.password, session())
+        .<Result>map((Session session) -> {
+          logger.debug(String.format("Successfully logged user %s in; session key: %s", req.email, session.getKey()));
+          return ok(Json.toJson(new JsonLoginSuccess(session, authRepo.issueToken(session))));
+        })
+        .recover((Throwable e) -> {
+          if (e instanceof DoesNotExistException) {
+            logger.error(String.format("E-mail address %s does not exist in database", req.email), e);
+            return notFound(Json.toJson(new JsonError(String.format("Cannot find user with e-mail address: %s", req.email))));
+          } else if (e instanceof InvalidPasswordException) {
+            return badRequest(Json.toJson(new JsonError("Invalid password")));
+          } else if (e instanceof RejectedExecutionException) {
+            logger.error("Password hashing pool is full - rejecting login", e);
+            return status(SERVICE_UNAVAILABLE, Json.toJson(new JsonError("Too many requests - please try again later")));
+          }
+          
+          logger.error("Unable to log user in", e);
+          return internalServerError(Json.toJson(new JsonError("Internal server error")));
+        });
   }
   
   
@@ -274,4 +551,13 @@ public class APIController extends BaseController {
     return ok(Json.toJson(new JsonGenericMessage("OK")));
   }
   
+  
+  /**
+   * Returns a snapshot of this node's internal metrics.
+   */
+  @SubjectPresent
+  public Result getMetrics() {
+    return ok(Json.toJson(new JsonMetrics(metrics)));
+  }
+  
 }
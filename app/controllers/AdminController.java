@@ -1,6 +1,6 @@
 package controllers;
 
-import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.RejectedExecutionException;
 
 import com.google.inject.Inject;
 
@@ -12,6 +12,7 @@ import forms.LoginForm;
 import models.Session;
 import play.Logger;
 import play.data.Form;
+import play.libs.F;
 import play.mvc.*;
 import play.twirl.api.Html;
 import repos.AuthRepo;
@@ -78,36 +79,48 @@ public class AdminController extends BaseController {
    * @return
    */
   @SubjectNotPresent
-  public Result doLogin() {
+  public F.Promise<Result> doLogin() {
     Form<LoginForm> form = Form.form(LoginForm.class).bindFromRequest(request());
     LoginForm loginForm = form.get();
-    Session session = null;
     
-    // if we have an e-mail address and password
-    if (!form.hasErrors() && !form.hasGlobalErrors()) {
-      // try to log the user in
-      try {
-        session = authRepo.login(loginForm.getEmail(), loginForm.getPassword(), session());
-      } catch (NoSuchAlgorithmException e) {
-        return internalServerError((Html)views.html.internalServerError.render(null, request()));
-      } catch (DoesNotExistException e) {
-        form.reject("email", "Unrecognised e-mail address");
-      } catch (InvalidPasswordException e) {
-        form.reject("password", "Invalid password");
-      }
-    }
-    
-    // check if there are any form errors
-    if (form.hasErrors() || form.hasGlobalErrors()) {
-      logger.debug("Incoming form has errors - displaying login page again");
-      form.fill(new LoginForm(loginForm.getEmail(), null));
-      return ok((Html)views.html.login.render(null, request(), form));
-    }
+    // if we don't have an e-mail address and password
+    if (form.hasErrors() || form.hasGlobalErrors())
+      return F.Promise.pure(showLoginErrors(form, loginForm));
     
-    logger.debug(String.format("Created new session: %s", session.getKey()));
-    
-    // otherwise, all's good - go home
-    return redirect(controllers.routes.AdminController.index());
+    // try to log the user in
+    return authRepo.login(loginForm.getEmail(), loginForm.getPassword(), session())
+        .<Result>map((Session session) -> {
+          logger.debug(String.format("Created new session: %s", session.getKey()));
+          
+          // all's good - go home
+          return redirect(controllers.routes.AdminController.index());
+        })
+        .recover((Throwable e) -> {
+          if (e instanceof DoesNotExistException) {
+            form.reject("email", "Unrecognised e-mail address");
+          } else if (e instanceof InvalidPasswordException) {
+            form.reject("password", "Invalid password");
+          } else if (e instanceof RejectedExecutionException) {
+            form.reject("Too many people are logging in right now - please try again shortly");
+          } else {
+            logger.error("Unable to log user in", e);
+            return internalServerError((Html)views.html.internalServerError.render(null, request()));
+          }
+          
+          return showLoginErrors(form, loginForm);
+        });
+  }
+  
+  /**
+   * Displays the login page again, with the errors in the given form.
+   * @param form
+   * @param loginForm
+   * @return
+   */
+  protected Result showLoginErrors(Form<LoginForm> form, LoginForm loginForm) {
+    logger.debug("Incoming form has errors - displaying login page again");
+    form.fill(new LoginForm(loginForm.getEmail(), null));
+    return ok((Html)views.html.login.render(null, request(), form));
   }
   
   /**
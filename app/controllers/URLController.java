@@ -2,8 +2,9 @@ package controllers;
 
 import com.google.inject.Inject;
 
-import models.ShortURL;
+import models.RedirectTarget;
 import play.Logger;
+import play.libs.F;
 import play.mvc.*;
 import play.twirl.api.Html;
 import repos.LinkRepo;
@@ -22,23 +23,23 @@ public class URLController extends Controller {
   }
   
   /**
-   * The primary routing function for Shrty.
+   * The primary routing function for Shrty. This never blocks: any cache or database lookups
+   * needed happen on their own thread pools, and the result is rendered once they're done.
    * @param code
    * @return
    */
-  public Result route(String code) {
-    // try to look up the relevant short URL
-    ShortURL shortUrl = linkRepo.cachedLinkLookup(code);
-    
-    if (shortUrl != null) {
-      logger.debug(String.format("Incoming short code %s, routing to %s", code, shortUrl.getUrl()));
-      return redirect(shortUrl.getUrl());
-    } else {
+  public F.Promise<Result> route(String code) {
+    // try to look up where the short code should take us
+    return linkRepo.cachedRedirectLookup(code).map((RedirectTarget target) -> {
+      if (target != null) {
+        logger.debug(String.format("Incoming short code %s, routing to %s", code, target.getUrl()));
+        return redirect(target.getUrl());
+      }
+      
       logger.debug(String.format("Cannot find link for short code: %s", code));
-    }
-    
-    // sorry, can't find the short code you're looking for
-    return notFound((Html)views.html.notFound.render(request()));
+      // sorry, can't find the short code you're looking for
+      return notFound((Html)views.html.notFound.render(request()));
+    });
   }
 
 }
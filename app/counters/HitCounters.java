@@ -0,0 +1,103 @@
+package counters;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.inject.Singleton;
+
+/**
+ * Keeps track of the hits received by each short code since the counters were last
+ * drained. Each short code gets its own striped counter, so concurrent redirects only
+ * contend when they land on exactly the same counter cell, and bumping an existing
+ * counter does not allocate.
+ */
+@Singleton
+public class HitCounters {
+
+  /** The number of drains in a row for which a counter must be idle before it is discarded. */
+  public static final int IDLE_DRAINS = 3;
+
+  private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+  /** Only touched while draining: how many drains in a row each counter has been idle for. */
+  private final Map<String, Integer> idleDrains = new HashMap<>();
+  /** Only touched while draining: the counters discarded by the last drain. */
+  private Map<String, LongAdder> retired = new HashMap<>();
+
+  /**
+   * Records a single hit for the given short code.
+   * @param shortCode
+   */
+  public void increment(String shortCode) {
+    counterFor(shortCode).increment();
+  }
+
+  /**
+   * Adds the given number of hits to the counter for the specified short code (e.g. to
+   * put back deltas which could not be persisted).
+   * @param shortCode
+   * @param hits
+   */
+  public void add(String shortCode, long hits) {
+    counterFor(shortCode).add(hits);
+  }
+
+  protected LongAdder counterFor(String shortCode) {
+    // plain lookups don't lock, so try that before falling back to computeIfAbsent
+    LongAdder counter = counters.get(shortCode);
+    if (counter == null) {
+      counter = counters.computeIfAbsent(shortCode, (code) -> new LongAdder());
+    }
+    return counter;
+  }
+
+  /**
+   * Removes the hits recorded so far from the counters, returning them as deltas. Hits
+   * recorded while draining are either included in the result or left behind for the next
+   * drain. Counters which have been idle for IDLE_DRAINS drains in a row are discarded to keep
+   * the map small, but are checked once more on the following drain, to pick up hits from
+   * redirects which looked them up just before they were discarded. (So a hit can only be lost
+   * if the thread recording it stalls for a whole drain interval in between.)
+   * @return A map of short codes to the number of hits each received.
+   */
+  public synchronized Map<String, Long> drain() {
+    Map<String, Long> deltas = new HashMap<>();
+
+    // pick up any hits which landed on the counters we discarded last time
+    for (Map.Entry<String, LongAdder> entry: retired.entrySet()) {
+      long late = entry.getValue().sumThenReset();
+      if (late != 0) {
+        deltas.merge(entry.getKey(), late, Long::sum);
+      }
+    }
+    retired = new HashMap<>();
+
+    for (Map.Entry<String, LongAdder> entry: counters.entrySet()) {
+      String shortCode = entry.getKey();
+      LongAdder counter = entry.getValue();
+      long hits = counter.sum();
+
+      if (hits != 0) {
+        // subtract only what we've seen, leaving concurrent increments in place
+        counter.add(-hits);
+        deltas.merge(shortCode, hits, Long::sum);
+        idleDrains.remove(shortCode);
+      } else if (idleDrains.merge(shortCode, 1, Integer::sum) >= IDLE_DRAINS &&
+          counters.remove(shortCode, counter)) {
+        idleDrains.remove(shortCode);
+        retired.put(shortCode, counter);
+      }
+    }
+
+    return deltas;
+  }
+
+  /**
+   * Returns the number of short codes currently being tracked.
+   */
+  public int size() {
+    return counters.size();
+  }
+
+}
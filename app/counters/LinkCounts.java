@@ -0,0 +1,67 @@
+package counters;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import metrics.Metrics;
+
+/**
+ * Keeps running totals of the number of links (including secondary ones) and of unique
+ * (primary) links, so that they can be reported without counting the rows of the short
+ * URLs table each time. The totals are adjusted as links are created and deleted, and are
+ * periodically reconciled with the database, which takes care of any drift (e.g. from
+ * changes made by other nodes, or from transactions which were rolled back).
+ */
+@Singleton
+public class LinkCounts {
+
+  private final AtomicLong total = new AtomicLong();
+  private final AtomicLong unique = new AtomicLong();
+  private volatile boolean loaded = false;
+
+  @Inject
+  public LinkCounts(Metrics metrics) {
+    metrics.gauge("links.total", total::get);
+    metrics.gauge("links.unique", unique::get);
+  }
+
+  /**
+   * Has this node loaded the totals from the database yet?
+   * @return
+   */
+  public boolean isLoaded() {
+    return loaded;
+  }
+
+  /**
+   * Replaces the running totals with freshly counted ones.
+   * @param total
+   * @param unique
+   */
+  public void set(long total, long unique) {
+    this.total.set(total);
+    this.unique.set(unique);
+    loaded = true;
+  }
+
+  /**
+   * Adjusts the running totals by the given amounts.
+   * @param totalDelta
+   * @param uniqueDelta
+   */
+  public void add(long totalDelta, long uniqueDelta) {
+    total.addAndGet(totalDelta);
+    unique.addAndGet(uniqueDelta);
+  }
+
+  public long getTotal() {
+    return total.get();
+  }
+
+  public long getUnique() {
+    return unique.get();
+  }
+
+}
@@ -0,0 +1,167 @@
+package crypto;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import metrics.Metrics;
+import metrics.Timer;
+import play.Configuration;
+import play.Logger;
+import play.inject.ApplicationLifecycle;
+import play.libs.F;
+import scala.concurrent.ExecutionContext$;
+import scala.concurrent.ExecutionContextExecutor;
+
+/**
+ * Hashes and verifies passwords with PBKDF2 (HMAC-SHA256), which is deliberately expensive.
+ * Hashes are stored as "pbkdf2$[iterations]$[salt]$[hash]", with base64-encoded salt and hash,
+ * so that the work factor can be raised over time: hashes made with fewer iterations than
+ * currently configured (or with the legacy, unsalted SHA-256 scheme) are reported as needing
+ * a rehash, which happens the next time the user logs in.
+ *
+ * Hashing runs on its own small, bounded thread pool, so that a burst of logins queues up
+ * there (and is eventually rejected) rather than tying up the threads that serve redirects.
+ */
+@Singleton
+public class PasswordHasher {
+
+  private static final Logger.ALogger logger = Logger.of(PasswordHasher.class);
+  public static final String PREFIX = "pbkdf2";
+  private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+  private static final int SALT_BYTES = 16;
+  private static final int HASH_BITS = 256;
+
+  private final SecureRandom random = new SecureRandom();
+  private final int iterations;
+  private final ThreadPoolExecutor executor;
+  private final ExecutionContextExecutor executionContext;
+  private final Timer hashTimer;
+
+  @Inject
+  public PasswordHasher(ApplicationLifecycle lifecycle, Configuration config, Metrics metrics) {
+    iterations = config.getInt("shrty.auth.passwords.iterations", 100000);
+    int threads = config.getInt("shrty.auth.passwords.threads", 2);
+    int queueSize = config.getInt("shrty.auth.passwords.queueSize", 100);
+    logger.debug(String.format("Hashing passwords with %d iterations on %d thread(s)", iterations, threads));
+
+    AtomicInteger threadCount = new AtomicInteger();
+    executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(queueSize),
+        (Runnable r) -> {
+          Thread thread = new Thread(r, String.format("password-hasher-%d", threadCount.incrementAndGet()));
+          thread.setDaemon(true);
+          return thread;
+        });
+    executionContext = ExecutionContext$.MODULE$.fromExecutor(executor);
+
+    hashTimer = metrics.timer("passwords.hash");
+    metrics.gauge("passwords.queue.depth", () -> executor.getQueue().size());
+    metrics.gauge("passwords.active", executor::getActiveCount);
+
+    lifecycle.addStopHook(() -> {
+      executor.shutdown();
+      return F.Promise.pure(null);
+    });
+  }
+
+  /**
+   * The execution context on which to hash and verify passwords. Work submitted while its
+   * queue is full is rejected with a RejectedExecutionException.
+   * @return
+   */
+  public ExecutionContextExecutor executionContext() {
+    return executionContext;
+  }
+
+  /**
+   * Hashes the given password with a new, random salt.
+   * @param password
+   * @return The encoded hash, for storage.
+   * @throws NoSuchAlgorithmException
+   */
+  public String hash(String password) throws NoSuchAlgorithmException {
+    byte[] salt = new byte[SALT_BYTES];
+    random.nextBytes(salt);
+
+    return String.format("%s$%d$%s$%s", PREFIX, iterations,
+        Base64.getEncoder().encodeToString(salt),
+        Base64.getEncoder().encodeToString(pbkdf2(password, salt, iterations)));
+  }
+
+  /**
+   * Checks the given password against the given stored hash, which may be in the legacy
+   * SHA-256 format.
+   * @param password
+   * @param stored
+   * @return True if the password matches.
+   * @throws NoSuchAlgorithmException
+   */
+  public boolean verify(String password, String stored) throws NoSuchAlgorithmException {
+    if (stored == null)
+      return false;
+
+    if (!stored.startsWith(PREFIX + "$")) {
+      byte[] legacy = HashProvider.base64HashOf(password).getBytes(StandardCharsets.US_ASCII);
+      return MessageDigest.isEqual(legacy, stored.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    String[] parts = stored.split("\\$");
+    if (parts.length != 4)
+      return false;
+
+    try {
+      byte[] salt = Base64.getDecoder().decode(parts[2]);
+      byte[] expected = Base64.getDecoder().decode(parts[3]);
+      return MessageDigest.isEqual(expected, pbkdf2(password, salt, Integer.parseInt(parts[1])));
+    } catch (IllegalArgumentException e) {
+      logger.error("Malformed password hash", e);
+      return false;
+    }
+  }
+
+  /**
+   * Checks whether the given stored hash is weaker than what we'd make now.
+   * @param stored
+   * @return
+   */
+  public boolean needsRehash(String stored) {
+    if (stored == null || !stored.startsWith(PREFIX + "$"))
+      return true;
+
+    String[] parts = stored.split("\\$");
+    try {
+      return parts.length != 4 || Integer.parseInt(parts[1]) < iterations;
+    } catch (NumberFormatException e) {
+      return true;
+    }
+  }
+
+  protected byte[] pbkdf2(String password, byte[] salt, int iterations) throws NoSuchAlgorithmException {
+    long start = System.nanoTime();
+    PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+
+    try {
+      return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+    } catch (InvalidKeySpecException e) {
+      throw new IllegalArgumentException("Unable to hash password", e);
+    } finally {
+      spec.clearPassword();
+      hashTimer.recordSince(start);
+    }
+  }
+
+}
@@ -0,0 +1,48 @@
+package crypto;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.inject.Singleton;
+
+/**
+ * Generates session keys which are unique by construction, so that no lookups are needed to
+ * check for collisions. Each key is made up of this node's (random) ID, a per-node counter and
+ * 128 bits of randomness, base64url-encoded: the node ID and counter guarantee uniqueness, and
+ * the random part makes keys impossible to guess.
+ */
+@Singleton
+public class SessionKeyGenerator {
+
+  private static final int RANDOM_BYTES = 16;
+
+  /** SecureRandom instances are thread-safe, so we share one (seeded up front). */
+  private final SecureRandom random = new SecureRandom();
+  private final long nodeId;
+  private final AtomicLong counter = new AtomicLong();
+
+  public SessionKeyGenerator() {
+    // force the seeding now, rather than while a user waits to log in
+    nodeId = random.nextLong();
+    counter.set(random.nextLong() >>> 1);
+  }
+
+  /**
+   * Generates a new session key.
+   * @return A string containing the new session key.
+   */
+  public String generate() {
+    byte[] randomPart = new byte[RANDOM_BYTES];
+    random.nextBytes(randomPart);
+
+    ByteBuffer buf = ByteBuffer.allocate(16 + RANDOM_BYTES);
+    buf.putLong(nodeId);
+    buf.putLong(counter.incrementAndGet());
+    buf.put(randomPart);
+
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(buf.array());
+  }
+
+}
@@ -0,0 +1,66 @@
+package metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+import com.google.inject.Singleton;
+
+/**
+ * A simple, in-process registry of named counters, timers and gauges, so that we can
+ * keep an eye on the behaviour of the background jobs and hot paths of a running node.
+ */
+@Singleton
+public class Metrics {
+
+  private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Timer> timers = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+  /**
+   * Returns the counter with the given name, creating it if necessary.
+   * @param name
+   * @return
+   */
+  public Counter counter(String name) {
+    return counters.computeIfAbsent(name, (n) -> new Counter());
+  }
+
+  /**
+   * Returns the timer with the given name, creating it if necessary.
+   * @param name
+   * @return
+   */
+  public Timer timer(String name) {
+    return timers.computeIfAbsent(name, (n) -> new Timer());
+  }
+
+  /**
+   * Registers (or replaces) a gauge, whose value is read on demand.
+   * @param name
+   * @param gauge
+   */
+  public void gauge(String name, LongSupplier gauge) {
+    gauges.put(name, gauge);
+  }
+
+  public Map<String, Counter> getCounters() {
+    return new TreeMap<>(counters);
+  }
+
+  public Map<String, Timer> getTimers() {
+    return new TreeMap<>(timers);
+  }
+
+  /**
+   * Reads the current values of all of the registered gauges.
+   * @return
+   */
+  public Map<String, Long> getGaugeValues() {
+    Map<String, Long> values = new TreeMap<>();
+    gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+    return values;
+  }
+
+}
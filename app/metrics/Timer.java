@@ -0,0 +1,61 @@
+package metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps track of the number, total and maximum duration of a particular operation.
+ */
+public class Timer {
+
+  private final LongAdder count = new LongAdder();
+  private final LongAdder totalNanos = new LongAdder();
+  private final AtomicLong maxNanos = new AtomicLong();
+  private volatile long lastNanos = 0;
+
+  /**
+   * Records a single operation which took the given number of nanoseconds.
+   * @param nanos
+   */
+  public void record(long nanos) {
+    count.increment();
+    totalNanos.add(nanos);
+    lastNanos = nanos;
+
+    long max = maxNanos.get();
+    while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+      max = maxNanos.get();
+    }
+  }
+
+  /**
+   * Records an operation which started at the given System.nanoTime() value.
+   * @param startNanos
+   */
+  public void recordSince(long startNanos) {
+    record(System.nanoTime() - startNanos);
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public double getTotalMillis() {
+    return totalNanos.sum() / (double)TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  public double getMeanMillis() {
+    long n = getCount();
+    return (n > 0) ? getTotalMillis() / n : 0.0;
+  }
+
+  public double getMaxMillis() {
+    return maxNanos.get() / (double)TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  public double getLastMillis() {
+    return lastNanos / (double)TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+}
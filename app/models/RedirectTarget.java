@@ -0,0 +1,51 @@
+package models;
+
+import java.io.Serializable;
+
+/**
+ * The minimal, immutable information needed to redirect a short code: the URL to which to
+ * redirect, and the version (database ID) of the link it came from. This is what the
+ * redirect path caches, rather than the full ShortURL entity with its creator's details.
+ */
+public final class RedirectTarget implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private final String shortCode;
+  private final String url;
+  private final long version;
+
+  public RedirectTarget(String shortCode, String url, long version) {
+    this.shortCode = shortCode;
+    this.url = url;
+    this.version = version;
+  }
+
+  /**
+   * Builds the redirect target for the given short URL.
+   * @param shortUrl
+   * @return
+   */
+  public static RedirectTarget of(ShortURL shortUrl) {
+    return new RedirectTarget(shortUrl.getShortCode(), shortUrl.getUrl(),
+        (shortUrl.getId() != null) ? shortUrl.getId() : 0L);
+  }
+
+  public String getShortCode() {
+    return shortCode;
+  }
+
+  public String getUrl() {
+    return url;
+  }
+
+  public long getVersion() {
+    return version;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s -> %s (v%d)", shortCode, url, version);
+  }
+
+}
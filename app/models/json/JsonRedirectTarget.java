@@ -0,0 +1,26 @@
+package models.json;
+
+import models.RedirectTarget;
+
+/**
+ * JSON representation of a redirect target, as stored in the cache by the JSON codec.
+ */
+public class JsonRedirectTarget extends JsonObject {
+
+  public String shortCode = null;
+  public String url = null;
+  public Long version = null;
+
+  public JsonRedirectTarget() {}
+
+  public JsonRedirectTarget(RedirectTarget target) {
+    this.shortCode = target.getShortCode();
+    this.url = target.getUrl();
+    this.version = target.getVersion();
+  }
+
+  public RedirectTarget toRedirectTarget() {
+    return new RedirectTarget(shortCode, url, (version != null) ? version : 0L);
+  }
+
+}
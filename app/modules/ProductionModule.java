@@ -1,11 +1,13 @@
 package modules;
 
 import com.google.inject.AbstractModule;
+import com.google.inject.name.Names;
 
 import actors.ActorFactory;
 import actors.DefaultActorFactory;
 import caching.CacheManager;
 import caching.EHCacheManager;
+import caching.NearCacheManager;
 import caching.RedisCacheManager;
 import play.Configuration;
 import play.Environment;
@@ -31,13 +33,26 @@ public class ProductionModule extends AbstractModule {
     // set up the caching system
     String cacheSystem = configuration.getString("shrty.cache.system", "ehcache");
     
+    Class<? extends CacheManager> cacheBackend = null;
+    
     // we currently support EHCache and Redis with default connection options
     if (cacheSystem.equals("ehcache")) {
       logger.debug("Using EHCache as default cache back-end");
-      bind(CacheManager.class).to(EHCacheManager.class).asEagerSingleton();
+      cacheBackend = EHCacheManager.class;
     } else if (cacheSystem.equals("redis")){
       logger.debug("Using Redis as default cache back-end");
-      bind(CacheManager.class).to(RedisCacheManager.class).asEagerSingleton();
+      cacheBackend = RedisCacheManager.class;
+    }
+    
+    if (cacheBackend != null) {
+      // optionally keep hot short URLs on the heap in front of the cache back-end
+      if (configuration.getBoolean("shrty.cache.near.enabled", false)) {
+        logger.debug("Using in-process near cache in front of cache back-end");
+        bind(CacheManager.class).annotatedWith(Names.named(NearCacheManager.BACKING)).to(cacheBackend).asEagerSingleton();
+        bind(CacheManager.class).to(NearCacheManager.class).asEagerSingleton();
+      } else {
+        bind(CacheManager.class).to(cacheBackend).asEagerSingleton();
+      }
     }
   }
 
@@ -1,24 +1,38 @@
 package repos;
 
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.PersistenceException;
 
 import com.avaje.ebean.Ebean;
+import com.avaje.ebean.Query;
 import com.avaje.ebean.QueryIterator;
+import com.avaje.ebean.Transaction;
 import com.google.inject.Inject;
 
 import caching.CacheManager;
-import crypto.HashProvider;
+import crypto.PasswordHasher;
+import crypto.SessionKeyGenerator;
 import exceptions.AlreadyExistsException;
 import exceptions.DoesNotExistException;
 import exceptions.InvalidPasswordException;
 import models.User;
 import play.Logger;
+import play.libs.F;
 import play.mvc.Http;
 import models.Session;
 import security.SecurityConstants;
-import utils.DateTimeConstants;
+import security.SessionTokens;
+import utils.ExecutionContexts;
 
 /**
  * Handles all user- and authentication-related functionality.
@@ -26,69 +40,71 @@ import utils.DateTimeConstants;
 public class AuthRepo {
   
   private static final Logger.ALogger logger = Logger.of(AuthRepo.class);
+  /**
+   * Restricts a query to open (or ended) sessions. These are literals rather than bound
+   * parameters, so that prepared statements' generic plans can use the partial indexes on
+   * sessions (where [not] expired).
+   */
+  public static final String OPEN_ONLY = "expired = false";
+  public static final String ENDED_ONLY = "expired = true";
   private final CacheManager cacheManager;
+  private final SessionExpiryQueue expiryQueue;
+  private final SessionTokens tokens;
+  private final SessionKeyGenerator sessionKeys;
+  private final PasswordHasher passwords;
+  private final ExecutionContexts executionContexts;
   
   @Inject
-  public AuthRepo(CacheManager cacheManager) {
+  public AuthRepo(CacheManager cacheManager, SessionExpiryQueue expiryQueue, SessionTokens tokens,
+      SessionKeyGenerator sessionKeys, PasswordHasher passwords, ExecutionContexts executionContexts) {
     this.cacheManager = cacheManager;
+    this.expiryQueue = expiryQueue;
+    this.tokens = tokens;
+    this.sessionKeys = sessionKeys;
+    this.passwords = passwords;
+    this.executionContexts = executionContexts;
   }
   
   /**
-   * Provides an interface to create a new user in the system.
+   * Provides an interface to create a new user in the system. The password is hashed on the
+   * password hashing pool.
    * @param firstName
    * @param lastName
    * @param email
    * @param password
-   * @return
-   * @throws NoSuchAlgorithmException
-   * @throws AlreadyExistsException 
+   * @return A promise of the new user, which fails with an AlreadyExistsException if the
+   *         e-mail address is taken, or a RejectedExecutionException if the password hashing
+   *         pool is too busy.
    */
-  public User createUser(String firstName, String lastName, String email, String password) throws NoSuchAlgorithmException, AlreadyExistsException {
+  public F.Promise<User> createUser(String firstName, String lastName, String email, String password) {
     logger.debug(String.format("Attempting to create new user with e-mail address: %s", email));
     
-    // first check if that e-mail address has already been registered
-    if (Ebean.find(User.class).where().ilike("email", email).findUnique() != null)
-      throw new AlreadyExistsException(String.format("User with e-mail address %s already exists in database", email));
-    
-    User user = new User();
-    
-    // set up the new user's details
-    user.setFirstName(firstName);
-    user.setLastName(lastName);
-    user.setEmail(email);
-    user.setPasswordHash(getPasswordHash(password));
-    user.setCreated(new Date());
-    
-    // save the user to the database
-    Ebean.save(user);
-    
-    return user;
+    return F.Promise.promise(() -> findUserByEmail(email), executionContexts.jdbc())
+        .flatMap((User existing) -> {
+          // first check if that e-mail address has already been registered
+          if (existing != null)
+            throw new AlreadyExistsException(String.format("User with e-mail address %s already exists in database", email));
+          
+          return F.Promise.promise(() -> passwords.hash(password), passwords.executionContext());
+        })
+        .map((String passwordHash) -> {
+          User user = new User();
+          
+          // set up the new user's details
+          user.setFirstName(firstName);
+          user.setLastName(lastName);
+          user.setEmail(email);
+          user.setPasswordHash(passwordHash);
+          user.setCreated(new Date());
+          
+          // save the user to the database
+          Ebean.save(user);
+          
+          return user;
+        }, executionContexts.jdbc());
   }
   
   
-  /**
-   * Allows one to generate a unique session key.
-   * @return A string containing the new session key.
-   * @throws NoSuchAlgorithmException 
-   */
-  protected String generateSessionKey() throws NoSuchAlgorithmException {
-    String input, key = null;
-    SecureRandom random = new SecureRandom();
-    String time = DateTimeConstants.DATETIME_FORMATTER.format(new Date());
-    
-    // try to generate a new session key
-    while (key == null) {
-      input = String.format("%s-%d", time, random.nextInt(10000000));
-      key = HashProvider.base64HashOf(input);
-      // check if the key exists
-      if (getSession(key) != null)
-        // not found yet
-        key = null;
-    }
-    
-    return key;
-  }
-  
   /**
    * Attempts to create a new session for the given user.
    * @param user
@@ -104,7 +120,7 @@ public class AuthRepo {
       session = new Session();
       session.setUser(user);
       session.setStarted(new Date());
-      session.setKey(generateSessionKey());
+      session.setKey(sessionKeys.generate());
       session.setExpired(false);
     }
     // set the (new) expiry date/time
@@ -114,6 +130,8 @@ public class AuthRepo {
     Ebean.save(session);
     // save the session to the cache
     cacheSession(session);
+    // and keep track of when it's due to expire
+    expiryQueue.schedule(session.getId(), session.getKey(), session.getExpires().getTime());
     
     logger.debug(String.format("Created new session %s for user %s", session.getKey(), user.getEmail()));
     
@@ -127,13 +145,108 @@ public class AuthRepo {
    */
   public void endSession(Session session) {
     logger.debug(String.format("Ending session %s", session.getKey()));
-    // make sure we remove the session from the cache
-    uncacheSession(session);
-    // we need the version of the session loaded from the database - can't trust the cache
-    session = findSessionById(session.getId());
-    // mark it as having expired
-    session.setExpired(true);
-    Ebean.save(session);
+    // make sure we remove the session from the cache (which holds it by its key, not by any token)
+    if (tokens.isToken(session.getKey())) {
+      Session stored = findSessionById(session.getId());
+      if (stored != null)
+        uncacheSession(stored);
+    } else {
+      uncacheSession(session);
+    }
+    // mark it as having expired (we can't trust the cached version of the session for this)
+    Ebean.createSqlUpdate("update sessions set expired = true where id = :id")
+        .setParameter("id", session.getId())
+        .execute();
+    expiryQueue.remove(session.getId());
+    
+    // and revoke any tokens issued for it, which can't outlive a freshly touched session
+    if (tokens.isEnabled()) {
+      long expires = System.currentTimeMillis() + SecurityConstants.DEFAULT_SESSION_EXPIRY * 1000L;
+      if (session.getExpires() != null)
+        expires = Math.max(expires, session.getExpires().getTime());
+      tokens.revoke(cacheManager, session.getId(), expires);
+    }
+  }
+  
+  
+  /**
+   * Issues a signed token for the given session, which API clients can use instead of the
+   * session key to authenticate without a cache or database lookup. The token expires when
+   * the session would (as things stand now); it isn't extended by activity.
+   * @param session
+   * @return The token, or null if tokens are disabled.
+   */
+  public String issueToken(Session session) {
+    if (!tokens.isEnabled())
+      return null;
+    
+    return tokens.issue(session.getUser().getId(), session.getId(), session.getExpires().getTime());
+  }
+  
+  
+  /**
+   * Checks whether the given session key is actually a session token.
+   * @param key
+   * @return
+   */
+  public boolean isToken(String key) {
+    return tokens.isToken(key);
+  }
+  
+  
+  /**
+   * Verifies the given session token without any cache or database lookups (other than
+   * loading the revoked sessions, once).
+   * @param token
+   * @return A Session object carrying the token's details (whose user is an unloaded
+   *         reference, and whose key is the token itself), or null if the token isn't valid.
+   */
+  public Session verifyToken(String token) {
+    if (!tokens.isEnabled())
+      return null;
+    
+    if (!tokens.isRevocationsLoaded()) {
+      loadRevokedSessions();
+    }
+    
+    SessionTokens.Claims claims = tokens.verify(token);
+    if (claims == null)
+      return null;
+    
+    Session session = new Session();
+    session.setId(claims.getSessionId());
+    session.setUser(Ebean.getReference(User.class, claims.getUserId()));
+    session.setKey(token);
+    session.setExpires(new Date(claims.getExpires()));
+    session.setExpired(false);
+    
+    return session;
+  }
+  
+  
+  /**
+   * Loads the sessions which have been ended, but whose tokens haven't expired yet, into the
+   * set of revoked sessions.
+   */
+  protected synchronized void loadRevokedSessions() {
+    if (tokens.isRevocationsLoaded())
+      return;
+    
+    Map<Long, Long> revoked = new HashMap<>();
+    
+    try (QueryIterator<Session> sessions = Ebean.find(Session.class)
+        .select("id, expires")
+        .where()
+          .raw(ENDED_ONLY)
+          .gt("expires", new Date())
+        .findIterate()) {
+      while (sessions.hasNext()) {
+        Session session = sessions.next();
+        revoked.put(session.getId(), session.getExpires().getTime());
+      }
+    }
+    
+    tokens.loadRevocations(revoked);
   }
   
   
@@ -148,55 +261,117 @@ public class AuthRepo {
   
   
   /**
-   * Runs through all sessions in the database that look like they should have
-   * expired, and expires them if necessary.
-   * @return
+   * Expires all of the sessions which are due to expire. Only the sessions whose scheduled
+   * expiry has passed are looked at: those which have been extended in the meantime (which
+   * only happens in the cache) are rescheduled and have their new expiry dates saved, and the
+   * rest are marked as expired in a single update.
+   * @return The number of sessions expired.
    */
   public int checkExpiredSessions() {
-    int updateCount = 0;
-    logger.debug("Attempting to check for expired sessions in the database...");
-    
-    Ebean.beginTransaction();
     Date now = new Date();
+    List<SessionExpiryQueue.Entry> due = expiryQueue.pollDue(now.getTime());
+    
+    if (due.isEmpty())
+      return 0;
+    
+    logger.debug(String.format("Checking %d session(s) due for expiry...", due.size()));
+    List<SessionExpiryQueue.Entry> expired = new ArrayList<>();
+    Map<Long, Date> extended = new HashMap<>();
+    
+    for (SessionExpiryQueue.Entry entry: due) {
+      Session cached = getCachedSession(entry.getKey());
+      
+      if (cached != null && cached.getExpires() != null && cached.getExpires().after(now)) {
+        extended.put(entry.getId(), cached.getExpires());
+        expiryQueue.schedule(entry.getId(), entry.getKey(), cached.getExpires().getTime());
+      } else {
+        expired.add(entry);
+      }
+    }
+    
+    int updateCount = 0;
+    Transaction txn = Ebean.beginTransaction();
     
     try {
-      QueryIterator<Session> iterator = Ebean.find(Session.class)
-          .where()
-            .eq("expired", false)
-            .lt("expires", now)
-          .findIterate();
-      Session session, cached;
+      Connection conn = txn.getConnection();
       
-      try {
-        while (iterator.hasNext()) {
-          session = iterator.next(); 
-          
-          // if we have a cached version of this session
-          cached = getCachedSession(session.getKey());
-          if (cached != null && cached.getExpires().before(now)) {
-            // update the stored expiry date of the session if it's different to the cached version
-            if (cached.getExpires().compareTo(session.getExpires()) == 0) {
-              session.setExpires(cached.getExpires());
-              Ebean.save(session);
-            }
-          } else {
-            logger.debug(String.format("Session with key %s has now expired", session.getKey()));
-            endSession(session);
+      // persist the expiry dates of the sessions which were extended in the cache
+      if (!extended.isEmpty()) {
+        try (PreparedStatement stmt = conn.prepareStatement("update sessions set expires = ? where id = ?")) {
+          for (Map.Entry<Long, Date> session: extended.entrySet()) {
+            stmt.setTimestamp(1, new Timestamp(session.getValue().getTime()));
+            stmt.setLong(2, session.getKey());
+            stmt.addBatch();
           }
+          stmt.executeBatch();
         }
-      } finally {
-        iterator.close();
       }
       
+      // and expire the rest in one go (unless they have been renewed in the database)
+      if (!expired.isEmpty()) {
+        try (PreparedStatement stmt = conn.prepareStatement(
+            "update sessions set expired = true where id = any(?) and expired = false and expires <= ?")) {
+          stmt.setArray(1, conn.createArrayOf("bigint",
+              expired.stream().map(SessionExpiryQueue.Entry::getId).toArray()));
+          stmt.setTimestamp(2, new Timestamp(now.getTime()));
+          updateCount = stmt.executeUpdate();
+        }
+      }
+      
+      txn.commit();
+    } catch (SQLException e) {
+      throw new PersistenceException("Unable to expire sessions", e);
     } finally {
-      Ebean.endTransaction();
+      txn.end();
     }
     
-    logger.debug(String.format("Updated %d entries in session database", updateCount));
+    // make sure the expired sessions are gone from the cache too
+    for (SessionExpiryQueue.Entry entry: expired) {
+      Session session = new Session();
+      session.setKey(entry.getKey());
+      cacheManager.removeSession(session);
+    }
+    
+    logger.debug(String.format("Expired %d session(s), extended %d", updateCount, extended.size()));
     return updateCount;
   }
   
   
+  /**
+   * Schedules the expiry of all of the open sessions in the database which this node isn't
+   * already keeping track of (e.g. because they were created before it started, or on
+   * another node).
+   */
+  public void scheduleOpenSessions() {
+    int count = 0;
+    
+    // only the open sessions are read, via their partial index
+    try (QueryIterator<Session> sessions = openSessionsQuery().findIterate()) {
+      while (sessions.hasNext()) {
+        Session session = sessions.next();
+        long expires = (session.getExpires() != null) ? session.getExpires().getTime() : 0;
+        expiryQueue.scheduleIfAbsent(session.getId(), session.getKey(), expires);
+        count++;
+      }
+    }
+    
+    logger.debug(String.format("Loaded expiry details for %d open session(s), tracking %d", count, expiryQueue.size()));
+  }
+  
+  
+  /**
+   * Builds the query for the expiry details of all of the open sessions.
+   * @return
+   */
+  public Query<Session> openSessionsQuery() {
+    return Ebean.find(Session.class)
+        .select("id, key, expires")
+        .where()
+          .raw(OPEN_ONLY)
+        .query();
+  }
+  
+  
   /**
    * Stores the given session in the cache for later retrieval.
    * @param session
@@ -258,19 +433,28 @@ public class AuthRepo {
   
   /**
    * Updates the given session's expiry details in the cache. Assumes that persistence of
-   * sessions to the database will be handled elsewhere.
-   * @param session The session to update.
-   * @return The newly updated session with new expiry date.
+   * sessions to the database will be handled elsewhere. To save a cache write on every
+   * request, sessions are only extended once at least SESSION_TOUCH_INTERVAL seconds have
+   * passed since they were last extended, and then by refreshing their lifetime in the cache
+   * rather than rewriting them.
+   * @param session The session to update (as just retrieved from the cache).
+   * @return The session, with its new expiry date if it was extended.
    */
   public Session touchSession(Session session) {
-    Session cached = getCachedSession(session.getKey());
+    long remaining = (session.getExpires() != null) ? session.getExpires().getTime() - System.currentTimeMillis() : 0;
+    
+    if (remaining > (SecurityConstants.DEFAULT_SESSION_EXPIRY - SecurityConstants.SESSION_TOUCH_INTERVAL) * 1000L) {
+      return session;
+    }
     
     // update the session expiry details
-    cached.touch();
-    // save it back to the cache
-    cacheSession(cached);
+    session.touch();
+    // and extend it in the cache, or put it back there if it has gone
+    if (!cacheManager.touchSession(session.getKey(), session.getExpires())) {
+      cacheSession(session);
+    }
     
-    return cached;
+    return session;
   }
   
   
@@ -280,14 +464,23 @@ public class AuthRepo {
    * @return
    */
   public Session findOpenSession(User user) {
+    return openSessionQuery(user).findUnique();
+  }
+  
+  
+  /**
+   * Builds the query for the first still-open session for the given user.
+   * @param user
+   * @return
+   */
+  public Query<Session> openSessionQuery(User user) {
     return Ebean.find(Session.class)
         .where()
           .eq("user", user)            // for this user
-          .eq("expired", false)        // non-expired sessions
+          .raw(OPEN_ONLY)              // non-expired sessions
           .gt("expires", new Date())   // whose expiry date is in the future
         .orderBy("expires desc")       // order the sessions by their expiry date with latest first
-        .setMaxRows(1)                 // we only need 1
-        .findUnique();
+        .setMaxRows(1);                // we only need 1
   }
   
   
@@ -297,11 +490,21 @@ public class AuthRepo {
    * @return A Session object if found, or null otherwise.
    */
   public Session findSessionByKey(String key) {
+    return sessionByKeyQuery(key).findUnique();
+  }
+  
+  
+  /**
+   * Builds the query for the unexpired session with the given key.
+   * @param key
+   * @return
+   */
+  public Query<Session> sessionByKeyQuery(String key) {
     return Ebean.find(Session.class)
         .where()
           .eq("key", key)
-          .eq("expired", false)
-        .findUnique();
+          .raw(OPEN_ONLY)
+        .query();
   }
   
   
@@ -326,48 +529,75 @@ public class AuthRepo {
   
   
   /**
-   * Globally accessible function to obtain the password hash for a given password.
-   * @param password
-   * @return
-   * @throws NoSuchAlgorithmException 
+   * Attempts to perform a login operation with the given e-mail address and password. The
+   * password is checked on the password hashing pool.
+   * @param email The e-mail address of the user logging in.
+   * @param password The cleartext password of the user logging in.
+   * @param httpSession The incoming request context's session.
+   * @return A promise of the new session object, which fails with a DoesNotExistException if
+   *         the user with the given e-mail address does not exist, an InvalidPasswordException
+   *         if the supplied password is invalid, or a RejectedExecutionException if the password
+   *         hashing pool is too busy.
    */
-  public static String getPasswordHash(String password) throws NoSuchAlgorithmException {
-    return HashProvider.base64HashOf(password);
+  public F.Promise<Session> login(String email, String password, Http.Session httpSession) {
+    // first try to find the user
+    return F.Promise.promise(() -> findUserByEmail(email), executionContexts.jdbc())
+        .flatMap((User user) -> {
+          // no such user
+          if (user == null)
+            throw new DoesNotExistException(String.format("User with e-mail address %s does not exist", email));
+          
+          // now check the user's password (which may yield a stronger hash to store for it)
+          return F.Promise.promise(() -> F.Tuple(user, checkPassword(user, password)), passwords.executionContext());
+        })
+        .map((F.Tuple<User, String> checked) -> {
+          User user = checked._1;
+          if (checked._2 != null)
+            updatePasswordHash(user, checked._2);
+          
+          // create and set up the session
+          Session session = createSession(user);
+          httpSession.put(SecurityConstants.COOKIE_SESSION_ID, session.getKey());
+          
+          logger.debug(String.format("New session created for user %s: %s", email, session.getKey()));
+          
+          return session;
+        }, executionContexts.jdbc());
   }
   
   
   /**
-   * Attempts to perform a login operation with the given e-mail address and password.
-   * @param email The e-mail address of the user logging in.
-   * @param password The cleartext password of the user logging in.
-   * @param httpSession The incoming request context's session.
-   * @return A new session object.
+   * Checks the given user's password, rehashing it if the stored hash is weaker than what
+   * we'd make now (e.g. a legacy SHA-256 hash). Must be called on the password hashing pool,
+   * which is why the new hash is left to the caller to store (see updatePasswordHash).
+   * @param user
+   * @param password
+   * @return The new hash to store for the user's password, or null if the stored one is fine.
    * @throws NoSuchAlgorithmException
-   * @throws DoesNotExistException If the user with the given e-mail address does not exist.
    * @throws InvalidPasswordException If the supplied password is invalid.
    */
-  public Session login(String email, String password, Http.Session httpSession) throws NoSuchAlgorithmException, DoesNotExistException, InvalidPasswordException {
-    // first try to authenticate the user
-    User user = findUserByEmail(email);
-    
-    // no such user
-    if (user == null)
-      throw new DoesNotExistException(String.format("User with e-mail address %s does not exist", email));
-    
-    // now check the user's password
-    String passwordHash = getPasswordHash(password);
-    
+  protected String checkPassword(User user, String password) throws NoSuchAlgorithmException, InvalidPasswordException {
     // access denied - invalid password
-    if (!passwordHash.equals(user.getPasswordHash()))
-      throw new InvalidPasswordException(String.format("Invalid password for user with e-mail address %s", email));
-    
-    // create and set up the session
-    Session session = createSession(user);
-    httpSession.put(SecurityConstants.COOKIE_SESSION_ID, session.getKey());
+    if (!passwords.verify(password, user.getPasswordHash()))
+      throw new InvalidPasswordException(String.format("Invalid password for user with e-mail address %s", user.getEmail()));
     
-    logger.debug(String.format("New session created for user %s: %s", email, session.getKey()));
-    
-    return session;
+    // this is the only time we have the cleartext password to rehash
+    return passwords.needsRehash(user.getPasswordHash()) ? passwords.hash(password) : null;
+  }
+  
+  
+  /**
+   * Stores the given (upgraded) password hash for the given user.
+   * @param user
+   * @param passwordHash
+   */
+  protected void updatePasswordHash(User user, String passwordHash) {
+    Ebean.createSqlUpdate("update users set password_hash = :hash where id = :id")
+        .setParameter("hash", passwordHash)
+        .setParameter("id", user.getId())
+        .execute();
+    user.setPasswordHash(passwordHash);
+    logger.debug(String.format("Upgraded password hash for user %s", user.getEmail()));
   }
   
   
@@ -400,7 +630,7 @@ public class AuthRepo {
       sessionId = httpRequest.getHeader(SecurityConstants.SESSIONKEY_HEADER);
     
     if (sessionId != null)
-      session = getSession(sessionId);
+      session = tokens.isToken(sessionId) ? verifyToken(sessionId) : getSession(sessionId);
     
     return session;
   }
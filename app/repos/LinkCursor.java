@@ -0,0 +1,131 @@
+package repos;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Date;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+
+import models.ShortURL;
+import play.libs.Json;
+
+/**
+ * A position in a sorted listing of links: the value of the sort column and the ID of the
+ * last link seen. The ID breaks ties between links with the same sort value, so that every
+ * link appears exactly once however many share a value. Cursors are handed to clients as
+ * opaque, URL-safe strings.
+ */
+public class LinkCursor {
+
+  private final Object value;
+  private final long id;
+
+  public LinkCursor(Object value, long id) {
+    this.value = value;
+    this.id = id;
+  }
+
+  /**
+   * Builds the cursor which points just past the given link.
+   * @param link
+   * @param sortBy The field by which the listing is sorted.
+   * @return
+   */
+  public static LinkCursor after(ShortURL link, String sortBy) {
+    switch (sortBy) {
+      case "title": return new LinkCursor(link.getTitle(), link.getId());
+      case "shortCode": return new LinkCursor(link.getShortCode(), link.getId());
+      case "url": return new LinkCursor(link.getUrl(), link.getId());
+      case "hitCount": return new LinkCursor(link.getHitCount(), link.getId());
+      case "created": return new LinkCursor(link.getCreated(), link.getId());
+      case "createdBy": return new LinkCursor(link.getCreatedBy().getId(), link.getId());
+      default: throw new IllegalArgumentException(String.format("Cannot sort links by %s", sortBy));
+    }
+  }
+
+  /**
+   * Parses a cursor previously produced by encode() for a listing sorted by the given field.
+   * @param cursor
+   * @param sortBy
+   * @return
+   * @throws IllegalArgumentException If the cursor is malformed.
+   */
+  public static LinkCursor decode(String cursor, String sortBy) {
+    JsonNode node;
+
+    try {
+      node = Json.parse(new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8));
+    } catch (RuntimeException e) {
+      throw new IllegalArgumentException("Malformed cursor", e);
+    }
+
+    if (!node.isArray() || node.size() != 2 || !node.get(1).canConvertToLong())
+      throw new IllegalArgumentException("Malformed cursor");
+
+    JsonNode value = node.get(0);
+    long id = node.get(1).asLong();
+
+    switch (sortBy) {
+      case "title":
+      case "shortCode":
+      case "url":
+        if (!value.isTextual())
+          throw new IllegalArgumentException("Malformed cursor");
+        return new LinkCursor(value.asText(), id);
+
+      case "hitCount":
+      case "createdBy":
+        if (!value.canConvertToLong())
+          throw new IllegalArgumentException("Malformed cursor");
+        return new LinkCursor(value.asLong(), id);
+
+      case "created":
+        if (!value.canConvertToLong())
+          throw new IllegalArgumentException("Malformed cursor");
+        return new LinkCursor(new Date(value.asLong()), id);
+
+      default:
+        throw new IllegalArgumentException(String.format("Cannot sort links by %s", sortBy));
+    }
+  }
+
+  /**
+   * Returns the entity property to compare cursor values against for the given sort field.
+   * @param sortBy
+   * @return
+   */
+  public static String sortProperty(String sortBy) {
+    return "createdBy".equals(sortBy) ? "createdBy.id" : sortBy;
+  }
+
+  public String encode() {
+    ArrayNode node = Json.newArray();
+
+    if (value instanceof Date) {
+      node.add(((Date)value).getTime());
+    } else if (value instanceof Long) {
+      node.add((Long)value);
+    } else {
+      node.add((String)value);
+    }
+    node.add(id);
+
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(
+        node.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Override
+  public String toString() {
+    return encode();
+  }
+
+  public Object getValue() {
+    return value;
+  }
+
+  public long getId() {
+    return id;
+  }
+
+}
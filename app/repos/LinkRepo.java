@@ -1,60 +1,106 @@
 package repos;
 
-import java.security.SecureRandom;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
 
-import org.hashids.Hashids;
+import javax.persistence.PersistenceException;
 
 import com.avaje.ebean.Ebean;
+import com.avaje.ebean.EbeanServer;
 import com.avaje.ebean.Expr;
 import com.avaje.ebean.ExpressionList;
+import com.avaje.ebean.Query;
 import com.avaje.ebean.QueryIterator;
+import com.avaje.ebean.Transaction;
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
 
 import caching.CacheManager;
+import caching.NegativeLookupCache;
+import caching.SingleFlight;
+import counters.HitCounters;
+import counters.LinkCounts;
+import metrics.Metrics;
+import models.RedirectTarget;
 import models.ShortURL;
 import models.User;
 import play.Logger;
-import security.SecurityConstants;
+import play.libs.F;
+import utils.ExecutionContexts;
 
 /**
- * Repository for managing short links.
+ * Repository for managing short links. There is one shared instance, so that concurrent
+ * redirect lookups for the same short code can share a single database query.
  */
+@Singleton
 public class LinkRepo {
   
   private static final Logger.ALogger logger = Logger.of(LinkRepo.class);
+  /** The maximum number of statements to send to the database in a single JDBC batch. */
+  public static final int MAX_BATCH_SIZE = 500;
+  /** The number of rows to fetch from the database at a time when iterating over links. */
+  public static final int EXPORT_FETCH_SIZE = 1000;
+  /** The maximum length of a short code (the size of the short_code column). */
+  public static final int MAX_SHORT_CODE_LENGTH = 50;
+  /** The maximum number of short codes to send in a single invalidation message. */
+  public static final int INVALIDATION_BATCH_SIZE = 1000;
+  /**
+   * Restricts a query to primary links. This is a literal rather than a bound parameter, as the
+   * partial indexes on short_urls (where is_primary) can only be used by prepared statements'
+   * generic plans if the query says is_primary = true in so many words.
+   */
+  public static final String PRIMARY_ONLY = "primary = true";
+  /** Makes the primary link for a short code (the one bound parameter) secondary. */
+  public static final String DEMOTE_PRIMARY_SQL =
+      "update short_urls set is_primary = false where short_code = ? and is_primary = true";
+  
   private final CacheManager cacheManager;
+  private final HitCounters hitCounters;
+  private final Metrics metrics;
+  private final ShortCodeAllocator shortCodeAllocator;
+  private final LinkCounts linkCounts;
+  private final NegativeLookupCache negativeLookups;
+  private final SingleFlight<String, RedirectTarget> redirectLoads;
+  private final ExecutionContexts executionContexts;
   
   @Inject
-  public LinkRepo(CacheManager cacheManager) {
+  public LinkRepo(CacheManager cacheManager, HitCounters hitCounters, Metrics metrics,
+      ShortCodeAllocator shortCodeAllocator, LinkCounts linkCounts, NegativeLookupCache negativeLookups,
+      ExecutionContexts executionContexts) {
     this.cacheManager = cacheManager;
+    this.hitCounters = hitCounters;
+    this.metrics = metrics;
+    this.shortCodeAllocator = shortCodeAllocator;
+    this.linkCounts = linkCounts;
+    this.negativeLookups = negativeLookups;
+    this.executionContexts = executionContexts;
+    this.redirectLoads = new SingleFlight<>(metrics.counter("redirect.load.coalesced"));
+    metrics.gauge("redirect.load.inflight", redirectLoads::size);
   }
   
   /**
-   * Attempts to generate a random, unique short code.
+   * Allocates a unique short code from the pre-reserved pool.
    * @return
    */
   public String generateUniqueShortCode() {
-    Hashids hashids = new Hashids(SecurityConstants.SHORTCODE_HASH_SALT,
-        SecurityConstants.SHORTCODE_LENGTH,
-        SecurityConstants.SHORTCODE_CHARSET);
-    SecureRandom random = new SecureRandom();
-    random.setSeed(new Date().getTime());
-    String result = null, code;
-    
-    // encode random integers until we find a valid code
-    while (result == null) {
-      code = hashids.encode(random.nextInt(10000000));
-      // check if the code exists in the database
-      if (findLinkByShortCode(code) == null) {
-        result = code;
-      }
-    }
-    
-    return result;
+    return shortCodeAllocator.allocate();
   }
   
   /**
@@ -64,12 +110,15 @@ public class LinkRepo {
    * @param shortCode The short code to use (if null, a unique short code will automatically be generated).
    * @param user The user creating the link.
    * @return
+   * @throws IllegalArgumentException If the custom short code is reserved.
    */
   public ShortURL createLink(String title, String url, String shortCode, User user) {
-    String code = (shortCode != null && shortCode.length() > 0) ? shortCode : generateUniqueShortCode();
+    boolean custom = (shortCode != null && shortCode.length() > 0);
     
-    // first make all other links for this short code secondary
-    makeSecondary(code);
+    if (custom && !findReservedShortCodes(Collections.singleton(shortCode)).isEmpty())
+      throw new IllegalArgumentException(String.format("Short code %s is reserved", shortCode));
+    
+    String code = custom ? shortCode : generateUniqueShortCode();
     
     ShortURL result = new ShortURL();
     
@@ -82,11 +131,24 @@ public class LinkRepo {
     // this is now the primary link
     result.setPrimary(true);
     
-    // save the short URL to the database
-    Ebean.save(result);
+    // make all other links for this short code secondary and save the new one atomically
+    Transaction txn = Ebean.beginTransaction();
+    int demoted;
     
-    // cache it
+    try {
+      demoted = demotePrimary(code);
+      Ebean.save(result);
+      txn.commit();
+    } finally {
+      txn.end();
+    }
+    
+    linkCounts.add(1, 1 - demoted);
+    negativeLookups.add(code);
+    
+    // cache it, and let any other nodes know that this short code has changed
     cacheLink(result);
+    invalidateLink(code);
     
     logger.debug(String.format("Created new short URL: %s", result.toString()));    
     return result;
@@ -94,26 +156,230 @@ public class LinkRepo {
   
   
   /**
-   * Makes all of the links with the specified short code secondary.
+   * Checks whether the given string can be used as a custom short code.
+   * @param shortCode
+   * @return
+   */
+  public static boolean isValidShortCode(String shortCode) {
+    return shortCode != null && shortCode.length() <= MAX_SHORT_CODE_LENGTH && shortCode.matches("^[0-9a-zA-Z]+$");
+  }
+  
+  
+  /**
+   * Finds those of the given custom short codes which can't be used, because they could still
+   * be handed out by the short code allocator (i.e. they are in its range, and not in use yet).
+   * Using one of these would let the allocator later give the same code to a new link, taking
+   * it over. Custom codes in that range which are already in use are fine, as the allocator
+   * never hands those out: reusing them just points them at a new URL.
+   * @param shortCodes
+   * @return The reserved short codes.
+   */
+  public Set<String> findReservedShortCodes(Collection<String> shortCodes) {
+    List<String> generated = shortCodes.stream()
+        .filter(shortCodeAllocator::isGeneratedCode)
+        .distinct()
+        .collect(Collectors.toList());
+    Set<String> reserved = new HashSet<>(generated);
+    
+    for (int i = 0; i < generated.size(); i += MAX_BATCH_SIZE) {
+      List<ShortURL> inUse = Ebean.find(ShortURL.class)
+          .select("shortCode")
+          .where()
+            .in("shortCode", generated.subList(i, Math.min(i + MAX_BATCH_SIZE, generated.size())))
+          .findList();
+      for (ShortURL link: inUse) {
+        reserved.remove(link.getShortCode());
+      }
+    }
+    
+    return reserved;
+  }
+  
+  
+  /**
+   * Creates all of the given links in a single transaction. Short codes are allocated in
+   * bulk for any links without one, database IDs are reserved up front, and the inserts are
+   * sent as JDBC batches. If the same short code appears more than once, the last link with
+   * that code becomes the primary one.
+   * @param links The links to create, with their title, URL and (optional) short code set.
+   * @param user The user creating the links.
+   * @return The given links, with their IDs, short codes and other properties filled in.
+   * @throws IllegalArgumentException If any of the custom short codes are reserved.
+   */
+  public List<ShortURL> createLinks(List<ShortURL> links, User user) {
+    long started = System.nanoTime();
+    Date now = new Date();
+    
+    if (links.isEmpty())
+      return links;
+    
+    logger.debug(String.format("Attempting to create %d links in bulk...", links.size()));
+    
+    // allocate short codes for all of the links without custom ones in one go
+    int generated = 0;
+    for (ShortURL link: links) {
+      if (link.getShortCode() == null || link.getShortCode().length() == 0)
+        generated++;
+    }
+    
+    Set<String> reserved = findReservedShortCodes(links.stream()
+        .map(ShortURL::getShortCode)
+        .filter((String code) -> code != null && code.length() > 0)
+        .collect(Collectors.toList()));
+    if (!reserved.isEmpty())
+      throw new IllegalArgumentException(String.format("Short code(s) reserved: %s", reserved));
+    
+    Iterator<String> codes = shortCodeAllocator.allocate(generated).iterator();
+    
+    // the last link for each short code is the primary one
+    Map<String, ShortURL> primaries = new LinkedHashMap<>();
+    Set<String> customCodes = new TreeSet<>();
+    for (ShortURL link: links) {
+      if (link.getShortCode() == null || link.getShortCode().length() == 0) {
+        link.setShortCode(codes.next());
+      } else {
+        customCodes.add(link.getShortCode());
+      }
+      primaries.put(link.getShortCode(), link);
+    }
+    
+    Iterator<Long> ids = reserveLinkIds(links.size()).iterator();
+    for (ShortURL link: links) {
+      link.setId(ids.next());
+      link.setHitCount(0L);
+      link.setCreated(now);
+      link.setCreatedBy(user);
+      link.setPrimary(primaries.get(link.getShortCode()) == link);
+    }
+    
+    Transaction txn = Ebean.beginTransaction();
+    int demoted = 0;
+    
+    try {
+      Connection conn = txn.getConnection();
+      int pending = 0;
+      
+      // only custom short codes can already have primary links in the database
+      try (PreparedStatement stmt = conn.prepareStatement(DEMOTE_PRIMARY_SQL)) {
+        for (String code: customCodes) {
+          stmt.setString(1, code);
+          stmt.addBatch();
+          
+          if (++pending == MAX_BATCH_SIZE) {
+            demoted += countUpdates(stmt.executeBatch());
+            pending = 0;
+          }
+        }
+        
+        if (pending > 0) {
+          demoted += countUpdates(stmt.executeBatch());
+        }
+      }
+      
+      pending = 0;
+      try (PreparedStatement stmt = conn.prepareStatement(
+          "insert into short_urls (id, title, short_code, url, hit_count, created, created_by_id, is_primary) " +
+          "values (?, ?, ?, ?, ?, ?, ?, ?)")) {
+        for (ShortURL link: links) {
+          stmt.setLong(1, link.getId());
+          stmt.setString(2, link.getTitle());
+          stmt.setString(3, link.getShortCode());
+          stmt.setString(4, link.getUrl());
+          stmt.setLong(5, link.getHitCount());
+          stmt.setTimestamp(6, new Timestamp(now.getTime()));
+          stmt.setLong(7, user.getId());
+          stmt.setBoolean(8, link.getPrimary());
+          stmt.addBatch();
+          
+          if (++pending == MAX_BATCH_SIZE) {
+            stmt.executeBatch();
+            pending = 0;
+          }
+        }
+        
+        if (pending > 0) {
+          stmt.executeBatch();
+        }
+      }
+      
+      logger.debug("Committing bulk link creation transaction...");
+      txn.commit();
+      
+    } catch (SQLException e) {
+      throw new PersistenceException("Unable to create links in bulk", e);
+    } finally {
+      txn.end();
+    }
+    
+    linkCounts.add(links.size(), primaries.size() - demoted);
+    primaries.keySet().forEach(negativeLookups::add);
+    
+    // warm up the cache, and let other nodes know about all of the new short codes (and any
+    // custom ones that changed)
+    cacheLinks(primaries.values());
+    invalidateLinks(primaries.keySet());
+    
+    metrics.timer("links.bulk.duration").recordSince(started);
+    metrics.counter("links.bulk.created").add(links.size());
+    
+    logger.debug(String.format("Created %d links in bulk", links.size()));
+    return links;
+  }
+  
+  
+  /**
+   * Reserves the given number of IDs from the short URLs table's sequence in a single query.
+   * @param count
+   * @return The reserved IDs, in ascending order.
+   */
+  protected List<Long> reserveLinkIds(int count) {
+    return Ebean.createSqlQuery("select nextval('short_urls_id_seq') as id from generate_series(1, :count)")
+        .setParameter("count", count)
+        .findList()
+        .stream()
+        .map((row) -> row.getLong("id"))
+        .sorted()
+        .collect(Collectors.toList());
+  }
+  
+  
+  /**
+   * Makes all of the links with the specified short code secondary. This is a single update,
+   * which only touches the (at most one) primary link thanks to the partial index on
+   * the primary links' short codes.
    * @param shortCode
    * @return The number of links updated.
-   * 
-   * @todo Figure out a way to optimise this.
    */
   public int makeSecondary(String shortCode) {
-    final int[] count = {0};
+    int count = demotePrimary(shortCode);
+    linkCounts.add(0, -count);
     
-    Ebean.find(ShortURL.class)
-      .where()
-        .eq("shortCode", shortCode)
-      .findEach((ShortURL url) -> {
-        url.setPrimary(false);
-        Ebean.save(url);
-        count[0]++;
-      });
+    // as for deletion, the short code no longer redirects anywhere, so drop it from the cache
+    // (here and on other nodes) once the update has gone through
+    ShortURL cached = getCachedLink(shortCode);
+    if (cached != null) {
+      uncacheLink(cached);
+    }
+    cacheManager.removeRedirect(shortCode);
+    invalidateLink(shortCode);
+    
+    return count;
+  }
+  
+  
+  /**
+   * Makes the primary link for the given short code secondary, without adjusting the link
+   * totals (for when the caller is about to add a new primary link in its place).
+   * @param shortCode
+   * @return The number of links updated.
+   */
+  protected int demotePrimary(String shortCode) {
+    int count = Ebean.createSqlUpdate(DEMOTE_PRIMARY_SQL)
+        .setParameter(1, shortCode)
+        .execute();
     
-    logger.debug(String.format("%d link(s) made secondary", count[0]));
-    return count[0];
+    logger.debug(String.format("%d link(s) made secondary", count));
+    return count;
   }
   
   
@@ -124,21 +390,30 @@ public class LinkRepo {
    */
   public int deleteLinks(String shortCode) {
     logger.debug(String.format("Attempting to delete all links with short code: %s", shortCode));
-    // make sure we remove any entries from the cache
+    List<ShortURL> links = Ebean.find(ShortURL.class)
+      .where()
+        .eq("shortCode", shortCode)
+      .findList();
+    int deleted = Ebean.delete(links);
+    linkCounts.add(-deleted, links.stream().anyMatch(ShortURL::getPrimary) ? -1 : 0);
+    
+    // only now that the links are gone can we remove them from the cache (otherwise a
+    // concurrent redirect could put them straight back)
     ShortURL cached = getCachedLink(shortCode);
     if (cached != null) {
       logger.debug("Also removing link from cache...");
       uncacheLink(cached);
     }
-    return Ebean.delete(Ebean.find(ShortURL.class)
-      .where()
-        .eq("shortCode", shortCode)
-      .findList());
+    // the redirect target is cached separately, and may be there even if the link isn't
+    cacheManager.removeRedirect(shortCode);
+    invalidateLink(shortCode);
+    
+    return deleted;
   }
   
   
   /**
-   * Internal helper function to build up an ExpressionList object for a short URL query.
+   * Helper function to build up an ExpressionList object for a short URL query.
    * @param query
    * @param page
    * @param pageSize
@@ -146,16 +421,18 @@ public class LinkRepo {
    * @param sortDir
    * @return
    */
-  protected ExpressionList<ShortURL> buildLinkFetchExpr(String query, int page, int pageSize, String sortBy, String sortDir) {
-    ExpressionList<ShortURL> e = Ebean.find(ShortURL.class).where().eq("primary", true);
+  public ExpressionList<ShortURL> buildLinkFetchExpr(String query, int page, int pageSize, String sortBy, String sortDir) {
+    ExpressionList<ShortURL> e = Ebean.find(ShortURL.class).where().raw(PRIMARY_ONLY);
     
-    // if we have a query, build up the filtering criteria
+    // if we have a query, build up the filtering criteria (Ebean's ilike is rendered as
+    // lower(column) like ?, served by the trigram indexes on the lowercased columns)
     if (query != null && query.length() > 0) {
+      String pattern = String.format("%%%s%%", escapeLikePattern(query));
       e = e.or(
-          Expr.ilike("title", String.format("%%%s%%", query)),
+          Expr.ilike("title", pattern),
           Expr.or(
-             Expr.ilike("shortCode", String.format("%%%s%%", query)),
-             Expr.ilike("url", String.format("%%%s%%", query)))
+             Expr.ilike("shortCode", pattern),
+             Expr.ilike("url", pattern))
           );
     }
     
@@ -163,6 +440,17 @@ public class LinkRepo {
   }
   
   
+  /**
+   * Escapes the LIKE wildcards in the given search query, so that a search for "50%" or
+   * "my_link" matches those characters literally rather than any character(s).
+   * @param query
+   * @return
+   */
+  protected static String escapeLikePattern(String query) {
+    return query.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+  }
+  
+  
   /**
    * Allows for paged retrieval of links.
    * @param query A case-insensitive search query by which to filter URLs.
@@ -182,81 +470,215 @@ public class LinkRepo {
   
   
   /**
-   * Attempts to look up all of the short URL entries in the database, updating their hit
-   * counts from their corresponding entries in the cache.
+   * Allows for keyset (cursor-based) retrieval of links: rather than skipping over all of the
+   * links on previous pages, this seeks straight to the position after the given cursor, so
+   * every page costs the same however deep into the listing it is.
+   * @param query A case-insensitive search query by which to filter URLs.
+   * @param cursor The position after which to start, or null to start at the beginning.
+   * @param limit The maximum number of links to retrieve.
+   * @param sortBy The column by which to sort links.
+   * @param sortDir The sort direction (asc|desc).
+   * @return
+   */
+  public List<ShortURL> getLinksAfter(String query, LinkCursor cursor, int limit, String sortBy, String sortDir) {
+    logger.debug(String.format("Attempting to fetch %d links after cursor %s, sorted by %s %s", limit, cursor, sortBy, sortDir));
+    String property = LinkCursor.sortProperty(sortBy);
+    ExpressionList<ShortURL> e = buildLinkFetchExpr(query, 0, limit, sortBy, sortDir);
+    
+    if (cursor != null) {
+      // the redundant outer bound lets the database seek straight to the cursor's position
+      if ("asc".equals(sortDir)) {
+        e = e.ge(property, cursor.getValue())
+            .or(Expr.gt(property, cursor.getValue()), Expr.gt("id", cursor.getId()));
+      } else {
+        e = e.le(property, cursor.getValue())
+            .or(Expr.lt(property, cursor.getValue()), Expr.lt("id", cursor.getId()));
+      }
+    }
+    
+    return e.orderBy(String.format("%s %s, id %s", property, sortDir, sortDir))
+        .setMaxRows(limit)
+        .findList();
+  }
+  
+  
+  /**
+   * Adds the given hit count deltas to the primary links for their short codes in the
+   * database. Only the short codes in the given map are touched, and the updates are sent
+   * to the database as JDBC batches within a single transaction.
+   * @param deltas A map of short codes to the number of new hits each received.
+   * @return The number of links updated.
    */
-  public void updateHitCountsFromCache() {
-    long updateCount = 0;
+  public int applyHitCountDeltas(Map<String, Long> deltas) {
+    int updateCount = 0, pending = 0;
+    long started = System.nanoTime();
     
-    logger.debug("Attempting to update hit counts from cache...");
+    logger.debug(String.format("Attempting to apply hit count deltas for %d short code(s)...", deltas.size()));
     
     // start a transaction for this update
-    Ebean.beginTransaction();
+    Transaction txn = Ebean.beginTransaction();
     
     try {
-      QueryIterator<ShortURL> iterator = Ebean.find(ShortURL.class)
-          .orderBy("shortCode asc, created desc")
-          .findIterate();
-      Set<String> seenCodes = new HashSet<String>();
+      Connection conn = txn.getConnection();
       
-      try {
-        while (iterator.hasNext()) {
-          ShortURL url = iterator.next();
-          // see if we have a cached version of this URL
-          ShortURL cachedUrl = getCachedLink(url.getShortCode());
+      try (PreparedStatement stmt = conn.prepareStatement(
+          "update short_urls set hit_count = coalesce(hit_count, 0) + ? where short_code = ? and is_primary = true")) {
+        // update the rows in a consistent order so that concurrent flushes from other nodes can't deadlock us
+        for (Map.Entry<String, Long> delta: new TreeMap<>(deltas).entrySet()) {
+          stmt.setLong(1, delta.getValue());
+          stmt.setString(2, delta.getKey());
+          stmt.addBatch();
           
-          // selectively update the entries
-          if (cachedUrl != null && !seenCodes.contains(cachedUrl.getShortCode()) && cachedUrl.getHitCount() > url.getHitCount()) {
-            // update the entry's hit count
-            url.setHitCount(cachedUrl.getHitCount());
-            // update it
-            Ebean.save(url);
-            
-            // keep track of which short codes we've already seen
-            seenCodes.add(cachedUrl.getShortCode());
-            updateCount++;
+          if (++pending == MAX_BATCH_SIZE) {
+            updateCount += countUpdates(stmt.executeBatch());
+            pending = 0;
           }
         }
-      } finally {
-        iterator.close();
+        
+        if (pending > 0) {
+          updateCount += countUpdates(stmt.executeBatch());
+        }
       }
       
       // commit the changes
       logger.debug("Committing hit count update transaction...");
-      Ebean.commitTransaction();
+      txn.commit();
       
+    } catch (SQLException e) {
+      throw new PersistenceException("Unable to apply hit count deltas", e);
     } finally {
-      Ebean.endTransaction();
+      txn.end();
     }
     
+    metrics.timer("hits.flush.duration").recordSince(started);
+    metrics.counter("hits.flush.codes").add(deltas.size());
+    metrics.counter("hits.flush.rows").add(updateCount);
+    
     logger.debug(String.format("Updated %d entries' hit counts", updateCount));
+    return updateCount;
+  }
+  
+  
+  /**
+   * Helper function to total up the update counts returned by a JDBC batch.
+   * @param results
+   * @return
+   */
+  protected int countUpdates(int[] results) {
+    int count = 0;
+    for (int result: results) {
+      if (result > 0) {
+        count += result;
+      } else if (result == Statement.SUCCESS_NO_INFO) {
+        count++;
+      }
+    }
+    return count;
   }
   
   
   /**
-   * Retrieves a list of all of the unique/distinct short codes in the database.
+   * Retrieves a list of all of the unique/distinct short codes in the database. This loads
+   * every primary link into memory at once: use iterateLinks() for anything but small tables.
    * @return
    */
   public List<ShortURL> getUniqueShortCodes() {
     return Ebean.find(ShortURL.class)
         .where()
-          .eq("primary", true)
+          .raw(PRIMARY_ONLY)
         .findList();
   }
   
   
   /**
-   * Retrieves the total number of links in the database.
+   * Opens a database cursor over all of the links, in ID order, along with their creators.
+   * Links are fetched from the database in batches as the iterator advances, so this can be
+   * used to go through any number of links in bounded memory. The caller MUST close the
+   * iterator (which releases its database connection) when done with it.
+   * @param includeSecondary Whether or not to include links which are no longer primary.
+   * @return
+   */
+  public QueryIterator<ShortURL> iterateLinks(boolean includeSecondary) {
+    ExpressionList<ShortURL> e = Ebean.find(ShortURL.class)
+        .fetch("createdBy")
+        .where();
+    
+    if (!includeSecondary) {
+      e = e.raw(PRIMARY_ONLY);
+    }
+    
+    return iterateInTransaction(e.orderBy("id asc")
+        .setBufferFetchSizeHint(EXPORT_FETCH_SIZE));
+  }
+  
+  
+  /**
+   * Opens a database cursor over the primary links with the most hits, loading only the
+   * columns needed for redirection. As with iterateLinks(), the caller MUST close the iterator.
+   * @param limit The maximum number of links to return.
+   * @param fetchSize The number of rows to fetch from the database at a time.
+   * @return
+   */
+  public QueryIterator<ShortURL> iterateMostHitRedirects(int limit, int fetchSize) {
+    return iterateInTransaction(Ebean.find(ShortURL.class)
+        .select("id, shortCode, url")
+        .where()
+          .raw(PRIMARY_ONLY)
+        .orderBy("hitCount desc, id desc")
+        .setMaxRows(limit)
+        .setBufferFetchSizeHint(fetchSize));
+  }
+  
+  
+  /**
+   * Opens a database cursor for the given query inside a transaction of its own. PgJDBC ignores
+   * the fetch size (and reads the whole result set into memory) when auto-commit is on, so
+   * batched fetching only works within a transaction. The transaction isn't bound to the
+   * calling thread, so the iterator can be consumed from any thread, and it ends when the
+   * iterator is closed.
+   * @param query
+   * @return
+   */
+  protected static <T> QueryIterator<T> iterateInTransaction(Query<T> query) {
+    EbeanServer server = Ebean.getServer(null);
+    Transaction txn = server.createTransaction();
+    
+    try {
+      return new TransactionalQueryIterator<>(server.findIterate(query, txn), txn);
+    } catch (RuntimeException e) {
+      txn.end();
+      throw e;
+    }
+  }
+  
+  
+  /**
+   * Rebuilds the filter of short codes in use, used to rule out unknown short codes.
+   */
+  public void rebuildShortCodeFilter() {
+    negativeLookups.rebuild(getUniqueLinkCount(), () -> new ShortCodeIterator(
+        iterateInTransaction(Ebean.find(ShortURL.class)
+          .select("shortCode")
+          .where()
+            .raw(PRIMARY_ONLY)
+          .setBufferFetchSizeHint(EXPORT_FETCH_SIZE))));
+  }
+  
+  
+  /**
+   * Retrieves the total number of links in the database, from the running totals.
    * @return
    */
   public long getLinkCount() {
-    return Ebean.find(ShortURL.class)
-        .findRowCount();
+    if (!linkCounts.isLoaded())
+      reconcileLinkCounts();
+    return linkCounts.getTotal();
   }
   
   
   /**
-   * Helper function to get the number of primary links for the given query.
+   * Helper function to get the number of primary links for the given query. Unfiltered
+   * counts come from the running totals; only searches need to count rows.
    * @param query
    * @param page
    * @param pageSize
@@ -265,18 +687,37 @@ public class LinkRepo {
    * @return
    */
   public long getLinkCount(String query, int page, int pageSize, String sortBy, String sortDir) {
+    if (query == null || query.length() == 0)
+      return getUniqueLinkCount();
     return buildLinkFetchExpr(query, page, pageSize, sortBy, sortDir).findRowCount();
   }
   
   
   /**
-   * Retrieves the total number of unique links in the database.
+   * Retrieves the total number of unique links in the database, from the running totals.
    */
   public long getUniqueLinkCount() {
-    return Ebean.find(ShortURL.class)
+    if (!linkCounts.isLoaded())
+      reconcileLinkCounts();
+    return linkCounts.getUnique();
+  }
+  
+  
+  /**
+   * Counts the links in the database, and replaces the running totals with the results.
+   */
+  public void reconcileLinkCounts() {
+    long total = Ebean.find(ShortURL.class).findRowCount();
+    long unique = Ebean.find(ShortURL.class)
         .where()
-          .eq("primary", true)
+          .raw(PRIMARY_ONLY)
         .findRowCount();
+    
+    if (linkCounts.isLoaded() && (total != linkCounts.getTotal() || unique != linkCounts.getUnique())) {
+      logger.debug(String.format("Correcting link totals from %d/%d to %d/%d", linkCounts.getTotal(),
+          linkCounts.getUnique(), total, unique));
+    }
+    linkCounts.set(total, unique);
   }
   
   
@@ -286,24 +727,69 @@ public class LinkRepo {
    * @return A ShortURL object on success, or null if no such entry exists.
    */
   public ShortURL findLinkByShortCode(String shortCode) {
+    return linkByShortCodeQuery(shortCode).findUnique();
+  }
+  
+  /**
+   * Builds the query for the latest link with the given short code.
+   * @param shortCode
+   * @return
+   */
+  public Query<ShortURL> linkByShortCodeQuery(String shortCode) {
+    return Ebean.find(ShortURL.class)
+        .where()
+          .raw(PRIMARY_ONLY)
+          .eq("shortCode", shortCode)
+          .orderBy("created desc")
+        .setMaxRows(1);
+  }
+  
+  /**
+   * Attempts to find the redirect target for the latest link with the given short code,
+   * loading only the columns needed for redirection.
+   * @param shortCode The short code for which to search.
+   * @return A RedirectTarget object on success, or null if no such entry exists.
+   */
+  public RedirectTarget findRedirectByShortCode(String shortCode) {
+    ShortURL link = redirectByShortCodeQuery(shortCode).findUnique();
+    return (link != null) ? RedirectTarget.of(link) : null;
+  }
+  
+  /**
+   * Builds the query for the redirect details of the latest link with the given short code.
+   * @param shortCode
+   * @return
+   */
+  public Query<ShortURL> redirectByShortCodeQuery(String shortCode) {
     return Ebean.find(ShortURL.class)
+        .select("id, shortCode, url")
         .where()
-          .eq("primary", true)
+          .raw(PRIMARY_ONLY)
           .eq("shortCode", shortCode)
           .orderBy("created desc")
-        .setMaxRows(1)
-        .findUnique();
+        .setMaxRows(1);
   }
   
   /**
-   * Puts the given short URL into the cache.
+   * Puts the given short URL, as well as its redirect target, into the cache.
    * @param shortUrl
    */
   public void cacheLink(ShortURL shortUrl) {
     cacheManager.storeUrl(shortUrl);
+    cacheManager.storeRedirect(RedirectTarget.of(shortUrl));
     logger.debug(String.format("Cached short URL entry for code: %s", shortUrl.getShortCode()));
   }
   
+  /**
+   * Puts all of the given short URLs, as well as their redirect targets, into the cache in one go.
+   * @param shortUrls
+   */
+  public void cacheLinks(Collection<ShortURL> shortUrls) {
+    cacheManager.storeUrls(shortUrls);
+    cacheManager.storeRedirects(shortUrls.stream().map(RedirectTarget::of).collect(Collectors.toList()));
+    logger.debug(String.format("Cached %d short URL entries", shortUrls.size()));
+  }
+  
   /**
    * Allows one to try to retrieve a cached ShortURL object by way of its short code.
    * @param shortCode
@@ -313,39 +799,194 @@ public class LinkRepo {
     return cacheManager.findUrl(shortCode);
   }
   
+  /**
+   * Attempts to retrieve the cached ShortURL objects for all of the given short codes in one go.
+   * @param shortCodes
+   * @return A map of short codes to the cached ShortURL objects that could be found.
+   */
+  public Map<String, ShortURL> getCachedLinks(Collection<String> shortCodes) {
+    return cacheManager.findUrls(shortCodes);
+  }
+  
   /**
    * Removes the given short URL from the cache.
    * @param shortUrl
    */
   public void uncacheLink(ShortURL shortUrl) {
     cacheManager.removeUrl(shortUrl);
+    cacheManager.removeRedirect(shortUrl.getShortCode());
   }
   
   /**
-   * Performs a cached link lookup: if the URL with the given short code cannot be found in the cache,
-   * this attempts to look it up from the database.
+   * Tells all nodes that the link for the given short code has changed, so that any
+   * locally held copies of it are discarded.
    * @param shortCode
-   * @return A ShortURL object on success, or null on failure.
    */
-  public ShortURL cachedLinkLookup(String shortCode) {
-    ShortURL result = getCachedLink(shortCode);
+  public void invalidateLink(String shortCode) {
+    cacheManager.broadcastInvalidation(CacheManager.URL_TOPIC, shortCode);
+  }
+  
+  /**
+   * Tells all nodes that the links for the given short codes have changed, batching the
+   * short codes into as few messages as possible.
+   * @param shortCodes
+   */
+  public void invalidateLinks(Collection<String> shortCodes) {
+    List<String> batch = new ArrayList<>(INVALIDATION_BATCH_SIZE);
+    
+    for (String shortCode: shortCodes) {
+      batch.add(shortCode);
+      if (batch.size() == INVALIDATION_BATCH_SIZE) {
+        cacheManager.broadcastInvalidation(CacheManager.URL_TOPIC, String.join(CacheManager.KEY_SEPARATOR, batch));
+        batch.clear();
+      }
+    }
     
-    // if we can't find it in the cache
-    if (result == null) {
-      // look for it in the database
-      result = findLinkByShortCode(shortCode);
+    if (!batch.isEmpty()) {
+      cacheManager.broadcastInvalidation(CacheManager.URL_TOPIC, String.join(CacheManager.KEY_SEPARATOR, batch));
     }
+  }
+  
+  /**
+   * Looks up the redirect target for the given short code in the database, and caches it (or
+   * the fact that it doesn't exist) for next time.
+   * @param shortCode
+   * @return A RedirectTarget object on success, or null if there is no such short code.
+   */
+  protected RedirectTarget loadRedirect(String shortCode) {
+    metrics.counter("redirect.load.queries").increment();
+    RedirectTarget result = findRedirectByShortCode(shortCode);
     
-    // if we found the relevant link
     if (result != null) {
-      // update its hit counter in memory
-      result.setHitCount(result.getHitCount()+1);
-      // update it in the cache
-      cacheLink(result);
-      logger.debug(String.format("Updated hit count for %s to %d", result.getShortCode(), result.getHitCount()));
+      cacheManager.storeRedirect(result);
+    } else {
+      negativeLookups.recordMiss(shortCode);
     }
     
     return result;
   }
+  
+  /**
+   * Performs a cached redirect lookup without blocking the calling thread: if the redirect
+   * target for the given short code cannot be found in the near cache, the remote cache is
+   * checked on the cache thread pool, and then the database on the JDBC thread pool. Every
+   * successful lookup counts as a hit.
+   * @param shortCode
+   * @return A promise of a RedirectTarget object, or of null if there is no such short code.
+   */
+  public F.Promise<RedirectTarget> cachedRedirectLookup(String shortCode) {
+    // rule out short codes we know don't exist, without going to the cache or the database -
+    // generated codes are handed out from blocks reserved ahead of time, so one the filter
+    // hasn't heard of could have just been created on another node
+    if (negativeLookups.isMissing(shortCode, shortCodeAllocator::isGeneratedCode)) {
+      metrics.counter("redirect.negative.hits").increment();
+      return F.Promise.pure(null);
+    }
+    
+    RedirectTarget local = cacheManager.findLocalRedirect(shortCode);
+    if (local != null) {
+      hitCounters.increment(local.getShortCode());
+      return F.Promise.pure(local);
+    }
+    
+    return F.Promise.promise(() -> cacheManager.findRedirect(shortCode), executionContexts.cache())
+        .flatMap((cached) -> {
+          if (cached != null)
+            return F.Promise.pure(cached);
+          // load it from the database, sharing the load with any other requests for the same
+          // short code which are also waiting for it
+          return toPromise(redirectLoads.load(shortCode, executionContexts.jdbc(), () -> loadRedirect(shortCode)));
+        })
+        .map((result) -> {
+          // if we found the relevant link, count the hit - the hit counter actor persists it later
+          if (result != null) {
+            hitCounters.increment(result.getShortCode());
+          }
+          return result;
+        });
+  }
+  
+  /**
+   * Helper function to wrap a CompletableFuture in a Play promise.
+   * @param future
+   * @return
+   */
+  protected static <T> F.Promise<T> toPromise(CompletableFuture<T> future) {
+    F.RedeemablePromise<T> promise = F.RedeemablePromise.empty();
+    future.whenComplete((value, error) -> {
+      if (error != null) {
+        promise.failure(error);
+      } else {
+        promise.success(value);
+      }
+    });
+    return promise;
+  }
+  
+  
+  /**
+   * Presents a cursor over links as an iterator over their short codes.
+   */
+  protected static class ShortCodeIterator implements Iterator<String>, AutoCloseable {
+    
+    private final QueryIterator<ShortURL> links;
+    
+    public ShortCodeIterator(QueryIterator<ShortURL> links) {
+      this.links = links;
+    }
+    
+    @Override
+    public boolean hasNext() {
+      return links.hasNext();
+    }
+    
+    @Override
+    public String next() {
+      return links.next().getShortCode();
+    }
+    
+    @Override
+    public void close() {
+      links.close();
+    }
+    
+  }
+  
+  
+  /**
+   * Wraps a query iterator running in its own transaction, ending the transaction (which
+   * releases its database connection) when the iterator is closed.
+   */
+  protected static class TransactionalQueryIterator<T> implements QueryIterator<T> {
+    
+    private final QueryIterator<T> results;
+    private final Transaction txn;
+    
+    public TransactionalQueryIterator(QueryIterator<T> results, Transaction txn) {
+      this.results = results;
+      this.txn = txn;
+    }
+    
+    @Override
+    public boolean hasNext() {
+      return results.hasNext();
+    }
+    
+    @Override
+    public T next() {
+      return results.next();
+    }
+    
+    @Override
+    public void close() {
+      try {
+        results.close();
+      } finally {
+        // nothing was written, so this just returns the connection to the pool
+        txn.end();
+      }
+    }
+    
+  }
 
 }
@@ -0,0 +1,116 @@
+package repos;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import com.google.inject.Singleton;
+
+/**
+ * Keeps track of when each open session is due to expire, ordered by expiry date in a
+ * min-heap, so that finding the sessions due for expiry only costs time proportional to the
+ * number of them. Rescheduling a session doesn't search the heap for its old entry: the old
+ * entry is simply left behind and skipped when it reaches the top.
+ */
+@Singleton
+public class SessionExpiryQueue {
+
+  private final PriorityQueue<Entry> heap = new PriorityQueue<>(
+      (Entry a, Entry b) -> Long.compare(a.expires, b.expires));
+  /** The current entry for each session, by session ID. */
+  private final Map<Long, Entry> current = new HashMap<>();
+
+  /**
+   * Schedules the given session to expire at the given time, replacing any earlier schedule.
+   * @param id The session's database ID.
+   * @param key The session key.
+   * @param expires The session's expiry date/time, in epoch milliseconds.
+   */
+  public synchronized void schedule(long id, String key, long expires) {
+    Entry entry = new Entry(id, key, expires);
+    current.put(id, entry);
+    heap.add(entry);
+  }
+
+  /**
+   * Schedules the given session, unless it is already scheduled (in which case this node
+   * knows more recent details about it).
+   * @param id
+   * @param key
+   * @param expires
+   */
+  public synchronized void scheduleIfAbsent(long id, String key, long expires) {
+    if (!current.containsKey(id)) {
+      schedule(id, key, expires);
+    }
+  }
+
+  /**
+   * Stops tracking the given session (e.g. because it has been ended).
+   * @param id
+   */
+  public synchronized void remove(long id) {
+    current.remove(id);
+  }
+
+  /**
+   * Removes and returns all of the sessions due to expire at or before the given time.
+   * @param now The current time, in epoch milliseconds.
+   * @return
+   */
+  public synchronized List<Entry> pollDue(long now) {
+    List<Entry> due = new ArrayList<>();
+
+    while (!heap.isEmpty() && heap.peek().expires <= now) {
+      Entry entry = heap.poll();
+      // skip entries which have since been rescheduled or removed
+      if (current.get(entry.id) == entry) {
+        current.remove(entry.id);
+        due.add(entry);
+      }
+    }
+
+    return due;
+  }
+
+  /**
+   * The number of sessions being tracked.
+   * @return
+   */
+  public synchronized int size() {
+    return current.size();
+  }
+
+
+  /**
+   * A session's scheduled expiry.
+   */
+  public static class Entry {
+
+    private final long id;
+    private final String key;
+    private final long expires;
+
+    public Entry(long id, String key, long expires) {
+      this.id = id;
+      this.key = key;
+      this.expires = expires;
+    }
+
+    public long getId() {
+      return id;
+    }
+
+    public String getKey() {
+      return key;
+    }
+
+    public long getExpires() {
+      return expires;
+    }
+
+  }
+
+}
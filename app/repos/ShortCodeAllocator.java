@@ -0,0 +1,119 @@
+package repos;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.hashids.Hashids;
+
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.SqlRow;
+import com.google.inject.Singleton;
+
+import models.ShortURL;
+import play.Logger;
+import security.SecurityConstants;
+
+/**
+ * Hands out unique short codes from an in-memory pool. The pool is refilled by reserving
+ * a block of numbers from a database sequence (so that no two nodes ever receive the same
+ * block) and encoding each number with Hashids. Creating a link therefore costs no
+ * database round trips at all, other than one per block.
+ */
+@Singleton
+public class ShortCodeAllocator {
+
+  private static final Logger.ALogger logger = Logger.of(ShortCodeAllocator.class);
+  /** The number of codes reserved at a time - this MUST match the increment of short_code_seq. */
+  public static final int BLOCK_SIZE = 100;
+  /** The first number handed out by short_code_seq - this MUST match its start value. */
+  public static final long SEQUENCE_START = 10000000L;
+
+  private final Hashids hashids = new Hashids(SecurityConstants.SHORTCODE_HASH_SALT,
+      SecurityConstants.SHORTCODE_LENGTH,
+      SecurityConstants.SHORTCODE_CHARSET);
+  private final Deque<String> pool = new ArrayDeque<String>();
+
+  /**
+   * Allocates a single, unused short code.
+   * @return
+   */
+  public synchronized String allocate() {
+    if (pool.isEmpty()) {
+      reserveBlock();
+    }
+    return pool.poll();
+  }
+
+  /**
+   * Allocates the given number of unused short codes, reserving as many blocks as needed.
+   * @param count
+   * @return
+   */
+  public synchronized List<String> allocate(int count) {
+    List<String> codes = new ArrayList<String>(count);
+
+    while (codes.size() < count) {
+      if (pool.isEmpty()) {
+        reserveBlock();
+      }
+      codes.add(pool.poll());
+    }
+
+    return codes;
+  }
+
+  /**
+   * Checks whether the given short code is one which this allocator hands out (or could hand
+   * out in future), i.e. the encoding of a number from short_code_seq.
+   * @param code
+   * @return
+   */
+  public boolean isGeneratedCode(String code) {
+    long[] numbers;
+
+    try {
+      numbers = hashids.decode(code);
+    } catch (RuntimeException e) {
+      return false;
+    }
+
+    return numbers.length == 1 && numbers[0] >= SEQUENCE_START && hashids.encode(numbers[0]).equals(code);
+  }
+
+  /**
+   * Reserves the next block of numbers from the database and adds their short codes to
+   * the pool. Custom short codes chosen by users could coincide with generated ones, so
+   * we make a single query per block to leave out any codes which are already in use. (New
+   * custom codes can't take codes from blocks which have already been reserved, as LinkRepo
+   * refuses custom codes which could still be generated.)
+   */
+  protected void reserveBlock() {
+    while (pool.isEmpty()) {
+      SqlRow row = Ebean.createSqlQuery("select nextval('short_code_seq') as block_start").findUnique();
+      long blockStart = row.getLong("block_start");
+      List<String> codes = new ArrayList<String>(BLOCK_SIZE);
+
+      for (long n = blockStart; n < blockStart + BLOCK_SIZE; n++) {
+        codes.add(hashids.encode(n));
+      }
+
+      Set<String> taken = new HashSet<String>();
+      for (ShortURL url: Ebean.find(ShortURL.class).select("shortCode").where().in("shortCode", codes).findList()) {
+        taken.add(url.getShortCode());
+      }
+
+      for (String code: codes) {
+        if (!taken.contains(code)) {
+          pool.add(code);
+        }
+      }
+
+      logger.debug(String.format("Reserved short code block starting at %d (%d code(s) already taken)", blockStart, taken.size()));
+    }
+  }
+
+}
@@ -42,10 +42,10 @@ public class DefaultDeadboltHandler extends AbstractDeadboltHandler {
       logger.debug(String.format("Found session with ID: %s", session.getKey()));
       return F.Promise.promise(() -> {
         // if there is a session
-        logger.debug(String.format("Found session in cache for user: %s", session.getUser().toString()));
+        logger.debug(String.format("Found session for user with ID: %d", session.getUser().getId()));
         
-        // touch the session, updating its expiry details
-        Session touched = authRepo.touchSession(session);
+        // touch the session, updating its expiry details (tokens carry their own expiry)
+        Session touched = authRepo.isToken(session.getKey()) ? session : authRepo.touchSession(session);
         // keep track of the session in the context
         context.args.put("session", touched);
 
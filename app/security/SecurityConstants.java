@@ -7,6 +7,8 @@ public class SecurityConstants {
 
   /** The default number of seconds after which the session expires after no activity. */
   public final static Integer DEFAULT_SESSION_EXPIRY = 60*60;
+  /** Sessions are only extended once at least this many seconds of their lifetime have passed. */
+  public final static Integer SESSION_TOUCH_INTERVAL = 5*60;
   public final static String SESSIONKEY_HEADER = "X-Session-ID";
   public final static String COOKIE_SESSION_ID = "sessionId";
   /**
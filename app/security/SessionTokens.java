@@ -0,0 +1,204 @@
+package security;
+
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import caching.CacheManager;
+import play.Configuration;
+import play.Logger;
+
+/**
+ * Issues and verifies stateless, HMAC-signed session tokens for API clients, so that
+ * authenticating an API request doesn't need a cache or database round trip. A token looks
+ * like "t1.[user ID].[session ID].[expiry].[signature]", where the expiry is in epoch
+ * milliseconds and the signature is a base64url-encoded HMAC-SHA256 of everything before it,
+ * keyed with the application secret.
+ *
+ * Since tokens can't be taken back once issued, ending a session revokes all of its tokens
+ * by broadcasting the session's ID to all nodes, which keep it in a small set until the
+ * session's tokens would have expired anyway.
+ */
+@Singleton
+public class SessionTokens {
+
+  private static final Logger.ALogger logger = Logger.of(SessionTokens.class);
+  public static final String TOKEN_PREFIX = "t1.";
+  private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+  private final boolean enabled;
+  private final ThreadLocal<Mac> macs;
+  /** Revoked session IDs, and the time at which their tokens expire. */
+  private final Map<Long, Long> revoked = new ConcurrentHashMap<>();
+  private volatile boolean revocationsLoaded = false;
+
+  @Inject
+  public SessionTokens(CacheManager cacheManager, Configuration config) {
+    enabled = config.getBoolean("shrty.auth.tokens.enabled", false);
+    final byte[] secret = config.getString("play.crypto.secret", "").getBytes(StandardCharsets.UTF_8);
+
+    // Mac instances aren't thread-safe, so each thread gets its own
+    macs = ThreadLocal.withInitial(() -> {
+      try {
+        Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+        mac.init(new SecretKeySpec(secret, HMAC_ALGORITHM));
+        return mac;
+      } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+        throw new IllegalStateException("Unable to set up session token signing", e);
+      }
+    });
+
+    // sessions ended on any node revoke their tokens here too
+    cacheManager.addInvalidationListener(CacheManager.SESSION_TOPIC, this::onRevocation);
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Checks whether the given session key looks like a token (as opposed to an ordinary
+   * session key, which never contains a '.').
+   * @param key
+   * @return
+   */
+  public boolean isToken(String key) {
+    return key != null && key.startsWith(TOKEN_PREFIX);
+  }
+
+  /**
+   * Issues a token for the given user and session, valid until the given time.
+   * @param userId
+   * @param sessionId
+   * @param expires The token's expiry date/time, in epoch milliseconds.
+   * @return The token.
+   */
+  public String issue(long userId, long sessionId, long expires) {
+    String payload = String.format("%s%d.%d.%d", TOKEN_PREFIX, userId, sessionId, expires);
+    return payload + "." + sign(payload);
+  }
+
+  /**
+   * Verifies the given token's signature, expiry date and revocation status.
+   * @param token
+   * @return The details carried by the token if it is valid, or null if not.
+   */
+  public Claims verify(String token) {
+    if (!enabled || !isToken(token))
+      return null;
+
+    int sigStart = token.lastIndexOf('.');
+    String payload = token.substring(0, sigStart);
+    byte[] expected = sign(payload).getBytes(StandardCharsets.US_ASCII);
+    byte[] actual = token.substring(sigStart + 1).getBytes(StandardCharsets.US_ASCII);
+
+    // compare in constant time, so as not to leak how much of the signature was right
+    if (!MessageDigest.isEqual(expected, actual))
+      return null;
+
+    String[] parts = payload.substring(TOKEN_PREFIX.length()).split("\\.");
+    if (parts.length != 3)
+      return null;
+
+    Claims claims;
+    try {
+      claims = new Claims(Long.parseLong(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+
+    if (claims.getExpires() <= System.currentTimeMillis() || revoked.containsKey(claims.getSessionId()))
+      return null;
+
+    return claims;
+  }
+
+  /**
+   * Revokes all of the tokens issued for the given session, on all nodes.
+   * @param cacheManager The cache manager through which to broadcast the revocation.
+   * @param sessionId
+   * @param expires The time after which none of the session's tokens are valid anyway, in
+   *        epoch milliseconds.
+   */
+  public void revoke(CacheManager cacheManager, long sessionId, long expires) {
+    addRevocation(sessionId, expires);
+    cacheManager.broadcastInvalidation(CacheManager.SESSION_TOPIC, String.format("%d:%d", sessionId, expires));
+  }
+
+  public boolean isRevocationsLoaded() {
+    return revocationsLoaded;
+  }
+
+  /**
+   * Adds the given previously revoked sessions (e.g. loaded from the database on startup).
+   * @param sessions A map of session IDs to the time at which their tokens expire.
+   */
+  public void loadRevocations(Map<Long, Long> sessions) {
+    sessions.forEach(this::addRevocation);
+    revocationsLoaded = true;
+    logger.debug(String.format("Loaded %d revoked session(s)", sessions.size()));
+  }
+
+  protected void onRevocation(String key) {
+    String[] parts = key.split(":");
+    try {
+      addRevocation(Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+    } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+      logger.error(String.format("Ignoring malformed session revocation: %s", key));
+    }
+  }
+
+  protected void addRevocation(long sessionId, long expires) {
+    long now = System.currentTimeMillis();
+    // forget about revocations whose tokens have all expired
+    revoked.values().removeIf((Long until) -> until <= now);
+    if (expires > now)
+      revoked.put(sessionId, expires);
+  }
+
+  protected String sign(String payload) {
+    byte[] sig = macs.get().doFinal(payload.getBytes(StandardCharsets.UTF_8));
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(sig);
+  }
+
+
+  /**
+   * The details carried by a valid token.
+   */
+  public static class Claims {
+
+    private final long userId;
+    private final long sessionId;
+    private final long expires;
+
+    public Claims(long userId, long sessionId, long expires) {
+      this.userId = userId;
+      this.sessionId = sessionId;
+      this.expires = expires;
+    }
+
+    public long getUserId() {
+      return userId;
+    }
+
+    public long getSessionId() {
+      return sessionId;
+    }
+
+    public long getExpires() {
+      return expires;
+    }
+
+  }
+
+}
@@ -0,0 +1,65 @@
+package transfer;
+
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import metrics.Metrics;
+import play.Configuration;
+import play.Logger;
+import play.inject.ApplicationLifecycle;
+import play.libs.F;
+import scala.concurrent.ExecutionContext$;
+import scala.concurrent.ExecutionContextExecutor;
+
+/**
+ * The thread pool on which link imports run. An import can hold its thread for minutes, so
+ * imports get a small pool of their own rather than tying up the database pool that redirects
+ * depend on. The pool has no queue: an import started while all of its threads are busy is
+ * rejected straight away.
+ */
+@Singleton
+public class ImportExecutor {
+
+  private static final Logger.ALogger logger = Logger.of(ImportExecutor.class);
+
+  private final ThreadPoolExecutor executor;
+  private final ExecutionContextExecutor executionContext;
+
+  @Inject
+  public ImportExecutor(ApplicationLifecycle lifecycle, Configuration config, Metrics metrics) {
+    int threads = config.getInt("shrty.import.threads", 1);
+    logger.debug(String.format("Running up to %d concurrent import(s)", threads));
+
+    AtomicInteger threadCount = new AtomicInteger();
+    executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new SynchronousQueue<Runnable>(),
+        (Runnable r) -> {
+          Thread thread = new Thread(r, String.format("link-importer-%d", threadCount.incrementAndGet()));
+          thread.setDaemon(true);
+          return thread;
+        });
+    executionContext = ExecutionContext$.MODULE$.fromExecutor(executor);
+
+    metrics.gauge("import.active", executor::getActiveCount);
+
+    lifecycle.addStopHook(() -> {
+      executor.shutdown();
+      return F.Promise.pure(null);
+    });
+  }
+
+  /**
+   * The execution context on which to run imports. An import submitted while all of the
+   * pool's threads are busy is rejected with a RejectedExecutionException.
+   * @return
+   */
+  public ExecutionContextExecutor executionContext() {
+    return executionContext;
+  }
+
+}
@@ -0,0 +1,82 @@
+package transfer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import metrics.Metrics;
+import models.User;
+import play.Application;
+import play.Environment;
+import play.Mode;
+import play.api.Play;
+import play.inject.guice.GuiceApplicationBuilder;
+import play.libs.Json;
+import repos.AuthRepo;
+import repos.LinkRepo;
+import views.json.JsonImportReport;
+
+/**
+ * Command line entry point for importing links from a file, without going through HTTP:
+ *
+ *   activator "runMain transfer.ImportLinks links.csv admin@example.com"
+ *
+ * The format is taken from the file extension (.csv, otherwise NDJSON), and the links are
+ * created on behalf of the user with the given e-mail address. The application is started
+ * with its usual configuration, so links go to the configured database and cache.
+ *
+ * The import report is printed to standard output, and everything else (usage, and any
+ * error which stops the import) to standard error. The exit status is 0 if every link was
+ * imported, 2 if some lines failed, and 1 if the import couldn't be run at all.
+ */
+public class ImportLinks {
+
+  public static void main(String[] args) throws Exception {
+    if (args.length != 2) {
+      System.err.println("Usage: ImportLinks <file.ndjson|file.csv> <user e-mail address>");
+      System.exit(1);
+    }
+
+    File file = new File(args[0]);
+    if (!file.isFile()) {
+      System.err.println(String.format("Cannot find file: %s", args[0]));
+      System.exit(1);
+    }
+
+    LinkExportFormat format = file.getName().toLowerCase().endsWith(".csv") ? LinkExportFormat.CSV : LinkExportFormat.NDJSON;
+    Application app = new GuiceApplicationBuilder()
+        .in(Environment.simple())
+        .in(Mode.PROD)
+        .build();
+    int status = 0;
+
+    Play.start(app.getWrappedApplication());
+
+    try {
+      User user = app.injector().instanceOf(AuthRepo.class).findUserByEmail(args[1]);
+      if (user == null) {
+        System.err.println(String.format("Cannot find user with e-mail address: %s", args[1]));
+        status = 1;
+      } else {
+        LinkImporter importer = new LinkImporter(app.injector().instanceOf(LinkRepo.class),
+            app.injector().instanceOf(Metrics.class), user);
+
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+          ImportReport report = importer.importFrom(reader, format);
+          System.out.println(Json.prettyPrint(Json.toJson(new JsonImportReport(report))));
+          status = (report.getFailed() > 0) ? 2 : 0;
+        } catch (IllegalArgumentException | IOException e) {
+          System.err.println(String.format("Unable to import links: %s", e.getMessage()));
+          status = 1;
+        }
+      }
+    } finally {
+      Play.stop(app.getWrappedApplication());
+    }
+
+    System.exit(status);
+  }
+
+}
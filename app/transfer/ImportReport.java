@@ -0,0 +1,91 @@
+package transfer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Summarises the outcome of an import: how many links were created, how quickly, and which
+ * lines could not be imported (up to a limit, so that a badly formatted file doesn't result
+ * in an enormous report).
+ */
+public class ImportReport {
+
+  /** The maximum number of individual line errors to keep. */
+  public static final int MAX_ERRORS = 1000;
+
+  private long imported = 0;
+  private long failed = 0;
+  private long durationMillis = 0;
+  private final List<LineError> errors = new ArrayList<>();
+
+  public void addImported(int count) {
+    imported += count;
+  }
+
+  public void addError(long line, String error) {
+    failed++;
+    if (errors.size() < MAX_ERRORS) {
+      errors.add(new LineError(line, error));
+    }
+  }
+
+  public void setDurationMillis(long durationMillis) {
+    this.durationMillis = durationMillis;
+  }
+
+  public long getImported() {
+    return imported;
+  }
+
+  public long getFailed() {
+    return failed;
+  }
+
+  public long getDurationMillis() {
+    return durationMillis;
+  }
+
+  /**
+   * The average number of links created per second over the whole import.
+   * @return
+   */
+  public double getLinksPerSecond() {
+    return (durationMillis > 0) ? (imported * 1000.0 / durationMillis) : imported;
+  }
+
+  public List<LineError> getErrors() {
+    return Collections.unmodifiableList(errors);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d link(s) imported, %d failed, in %d ms (%.1f links/s)",
+        imported, failed, durationMillis, getLinksPerSecond());
+  }
+
+
+  /**
+   * The reason why a particular line of the input could not be imported.
+   */
+  public static class LineError {
+
+    private final long line;
+    private final String error;
+
+    public LineError(long line, String error) {
+      this.line = line;
+      this.error = error;
+    }
+
+    public long getLine() {
+      return line;
+    }
+
+    public String getError() {
+      return error;
+    }
+
+  }
+
+}
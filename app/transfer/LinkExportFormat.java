@@ -0,0 +1,102 @@
+package transfer;
+
+import java.text.SimpleDateFormat;
+
+import org.apache.commons.lang.StringEscapeUtils;
+
+import models.ShortURL;
+import play.libs.Json;
+import utils.DateTimeConstants;
+import views.json.JsonShortURL;
+
+/**
+ * The formats in which links can be exported, one line per link.
+ */
+public enum LinkExportFormat {
+
+  /** Newline-delimited JSON, with each link exactly as served by the API. */
+  NDJSON("application/x-ndjson", "ndjson") {
+    @Override
+    public String header() {
+      return null;
+    }
+
+    @Override
+    public String format(ShortURL link, SimpleDateFormat dateFormat) {
+      return Json.stringify(Json.toJson(new JsonShortURL(link)));
+    }
+  },
+
+  /** Comma-separated values, with the creator identified by their e-mail address. */
+  CSV("text/csv; charset=utf-8", "csv") {
+    @Override
+    public String header() {
+      return "id,title,shortCode,url,hitCount,created,createdBy,primary";
+    }
+
+    @Override
+    public String format(ShortURL link, SimpleDateFormat dateFormat) {
+      return String.join(",",
+          String.valueOf(link.getId()),
+          StringEscapeUtils.escapeCsv(link.getTitle()),
+          StringEscapeUtils.escapeCsv(link.getShortCode()),
+          StringEscapeUtils.escapeCsv(link.getUrl()),
+          (link.getHitCount() != null) ? String.valueOf(link.getHitCount()) : "",
+          (link.getCreated() != null) ? dateFormat.format(link.getCreated()) : "",
+          (link.getCreatedBy() != null) ? StringEscapeUtils.escapeCsv(link.getCreatedBy().getEmail()) : "",
+          String.valueOf(Boolean.TRUE.equals(link.getPrimary())));
+    }
+  };
+
+  private final String contentType;
+  private final String extension;
+
+  private LinkExportFormat(String contentType, String extension) {
+    this.contentType = contentType;
+    this.extension = extension;
+  }
+
+  /**
+   * Finds the export format with the given name (case-insensitive).
+   * @param name
+   * @return The format, or null if there is no such format.
+   */
+  public static LinkExportFormat of(String name) {
+    for (LinkExportFormat format: values()) {
+      if (format.extension.equalsIgnoreCase(name))
+        return format;
+    }
+    return null;
+  }
+
+  public String getContentType() {
+    return contentType;
+  }
+
+  public String getExtension() {
+    return extension;
+  }
+
+  /**
+   * Returns the line with which to start the export, or null if there is none.
+   * @return
+   */
+  public abstract String header();
+
+  /**
+   * Formats the given link as a single line (without a line terminator).
+   * @param link
+   * @param dateFormat The date format to use, which is not shared with other threads.
+   * @return
+   */
+  public abstract String format(ShortURL link, SimpleDateFormat dateFormat);
+
+  /**
+   * Creates a date format for a single export.
+   * @return
+   */
+  public static SimpleDateFormat newDateFormat() {
+    return new SimpleDateFormat(DateTimeConstants.DATETIME_FORMAT);
+  }
+
+}
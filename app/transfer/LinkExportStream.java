@@ -0,0 +1,102 @@
+package transfer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+
+import com.avaje.ebean.QueryIterator;
+
+import models.ShortURL;
+import play.Logger;
+
+/**
+ * Presents the links from a database cursor as a stream of export lines. Links are only
+ * fetched and formatted as the stream is read, so when handed to Play as a response body
+ * the export proceeds at the pace of the client, and only one line (plus the JDBC fetch
+ * buffer) is held in memory at a time.
+ */
+public class LinkExportStream extends InputStream {
+
+  private static final Logger.ALogger logger = Logger.of(LinkExportStream.class);
+  private static final byte[] EMPTY = new byte[0];
+
+  private final QueryIterator<ShortURL> links;
+  private final LinkExportFormat format;
+  private final SimpleDateFormat dateFormat = LinkExportFormat.newDateFormat();
+  private byte[] line;
+  private int pos = 0;
+  private long count = 0;
+  private boolean closed = false;
+
+  public LinkExportStream(QueryIterator<ShortURL> links, LinkExportFormat format) {
+    this.links = links;
+    this.format = format;
+    String header = format.header();
+    this.line = (header != null) ? toLine(header) : EMPTY;
+  }
+
+  protected byte[] toLine(String s) {
+    return (s + "\n").getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Makes sure there are unread bytes in the current line, fetching the next link if needed.
+   * @return False if there are no more links.
+   */
+  protected boolean fill() throws IOException {
+    while (pos >= line.length) {
+      if (closed)
+        return false;
+
+      try {
+        if (!links.hasNext()) {
+          logger.debug(String.format("Exported %d link(s) as %s", count, format.getExtension()));
+          close();
+          return false;
+        }
+        line = toLine(format.format(links.next(), dateFormat));
+      } catch (RuntimeException e) {
+        close();
+        throw new IOException("Unable to read links for export", e);
+      }
+      pos = 0;
+      count++;
+    }
+    return true;
+  }
+
+  @Override
+  public int read() throws IOException {
+    return fill() ? (line[pos++] & 0xFF) : -1;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0)
+      return 0;
+
+    int total = 0;
+    // fill as much of the buffer as we can, so that each chunk sent is a reasonable size
+    while (total < len && fill()) {
+      int n = Math.min(len - total, line.length - pos);
+      System.arraycopy(line, pos, b, off + total, n);
+      pos += n;
+      total += n;
+    }
+    return (total > 0) ? total : -1;
+  }
+
+  /**
+   * Releases the database cursor (and its connection). This happens automatically at the
+   * end of the export, and is called by Play if the client goes away part way through.
+   */
+  @Override
+  public void close() {
+    if (!closed) {
+      closed = true;
+      links.close();
+    }
+  }
+
+}
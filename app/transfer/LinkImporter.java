@@ -0,0 +1,237 @@
+package transfer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import metrics.Metrics;
+import models.ShortURL;
+import models.User;
+import play.Logger;
+import play.libs.Json;
+import repos.LinkRepo;
+
+/**
+ * Imports links from newline-delimited JSON or CSV, reading the input a line at a time and
+ * creating the links in fixed-size chunks (each in its own transaction, using JDBC batches
+ * and warming the cache as it goes). The importer's own memory use is therefore bounded by
+ * the chunk size, however large the input. It reads from whatever it is given, though: an
+ * HTTP import body has already been buffered in full (up to its size limit) by then.
+ *
+ * NDJSON lines are objects with "title", "url" and (optionally) "shortCode" fields, as for
+ * the single link creation API. CSV input must start with a header line naming at least the
+ * title and url columns (and, optionally, the shortCode column), in any order.
+ */
+public class LinkImporter {
+
+  private static final Logger.ALogger logger = Logger.of(LinkImporter.class);
+  /** The number of links to create per transaction. */
+  public static final int CHUNK_SIZE = 1000;
+
+  private final LinkRepo linkRepo;
+  private final Metrics metrics;
+  private final User user;
+
+  public LinkImporter(LinkRepo linkRepo, Metrics metrics, User user) {
+    this.linkRepo = linkRepo;
+    this.metrics = metrics;
+    this.user = user;
+  }
+
+  /**
+   * Imports all of the links from the given input.
+   * @param input
+   * @param format
+   * @return A report on the outcome of the import.
+   * @throws IOException If the input could not be read.
+   * @throws IllegalArgumentException If the input is CSV without a valid header line.
+   */
+  public ImportReport importFrom(Reader input, LinkExportFormat format) throws IOException {
+    long started = System.currentTimeMillis();
+    ImportReport report = new ImportReport();
+    BufferedReader reader = (input instanceof BufferedReader) ? (BufferedReader)input : new BufferedReader(input);
+    List<ShortURL> chunk = new ArrayList<>(CHUNK_SIZE);
+    List<Long> chunkLines = new ArrayList<>(CHUNK_SIZE);
+    Map<String, Integer> columns = null;
+    String line;
+    long lineNo = 0;
+
+    if (format == LinkExportFormat.CSV) {
+      while ((line = reader.readLine()) != null && line.trim().length() == 0) {
+        lineNo++;
+      }
+      lineNo++;
+      if (line == null)
+        throw new IllegalArgumentException("Missing CSV header");
+      columns = parseCsvHeader(parseCsvLine(line));
+    }
+
+    while ((line = reader.readLine()) != null) {
+      lineNo++;
+      if (line.trim().length() == 0)
+        continue;
+
+      try {
+        ShortURL link;
+
+        if (format == LinkExportFormat.CSV) {
+          List<String> fields = parseCsvLine(line);
+          link = toLink(field(fields, columns, "title"), field(fields, columns, "url"), field(fields, columns, "shortCode"));
+        } else {
+          JsonNode node = Json.parse(line);
+          if (!node.isObject())
+            throw new IllegalArgumentException("Invalid JSON object");
+          link = toLink(node.path("title").asText(null), node.path("url").asText(null), node.path("shortCode").asText(null));
+        }
+
+        chunk.add(link);
+        chunkLines.add(lineNo);
+      } catch (IllegalArgumentException e) {
+        report.addError(lineNo, e.getMessage());
+      } catch (RuntimeException e) {
+        report.addError(lineNo, "Unable to parse line");
+      }
+
+      if (chunk.size() >= CHUNK_SIZE) {
+        flush(chunk, chunkLines, report);
+      }
+    }
+
+    flush(chunk, chunkLines, report);
+    report.setDurationMillis(System.currentTimeMillis() - started);
+    logger.info(String.format("Import complete: %s", report));
+    return report;
+  }
+
+  /**
+   * Creates the links in the given chunk, and clears it for the next one. If the chunk cannot
+   * be created, all of its lines are reported as having failed, and the import carries on.
+   */
+  protected void flush(List<ShortURL> chunk, List<Long> chunkLines, ImportReport report) {
+    if (chunk.isEmpty())
+      return;
+
+    long started = System.nanoTime();
+
+    // leave out (and report) any links whose custom short codes are reserved
+    Set<String> reserved = linkRepo.findReservedShortCodes(chunk.stream()
+        .map(ShortURL::getShortCode)
+        .filter((String code) -> code != null)
+        .collect(Collectors.toList()));
+    if (!reserved.isEmpty()) {
+      List<ShortURL> allowed = new ArrayList<>(chunk.size());
+      List<Long> allowedLines = new ArrayList<>(chunk.size());
+      for (int i = 0; i < chunk.size(); i++) {
+        if (reserved.contains(chunk.get(i).getShortCode())) {
+          report.addError(chunkLines.get(i), "Reserved short code");
+        } else {
+          allowed.add(chunk.get(i));
+          allowedLines.add(chunkLines.get(i));
+        }
+      }
+      chunk.clear();
+      chunk.addAll(allowed);
+      chunkLines.clear();
+      chunkLines.addAll(allowedLines);
+      if (chunk.isEmpty())
+        return;
+    }
+
+    try {
+      linkRepo.createLinks(chunk, user);
+      report.addImported(chunk.size());
+      metrics.counter("links.import.created").add(chunk.size());
+    } catch (RuntimeException e) {
+      logger.error(String.format("Unable to import chunk of %d link(s) starting at line %d", chunk.size(), chunkLines.get(0)), e);
+      for (Long line: chunkLines) {
+        report.addError(line, "Unable to save link");
+      }
+    }
+
+    metrics.timer("links.import.chunk").recordSince(started);
+    logger.debug(String.format("Imported chunk: %s so far", report));
+    chunk.clear();
+    chunkLines.clear();
+  }
+
+  protected ShortURL toLink(String title, String url, String shortCode) {
+    if (title == null || title.length() == 0)
+      throw new IllegalArgumentException("Missing title");
+    if (url == null || url.length() == 0)
+      throw new IllegalArgumentException("Missing URL");
+    if (shortCode != null && !shortCode.isEmpty() && !LinkRepo.isValidShortCode(shortCode))
+      throw new IllegalArgumentException("Invalid short code");
+
+    ShortURL link = new ShortURL();
+    link.setTitle(title);
+    link.setUrl(url);
+    link.setShortCode((shortCode != null && !shortCode.isEmpty()) ? shortCode : null);
+    return link;
+  }
+
+  protected Map<String, Integer> parseCsvHeader(List<String> fields) {
+    Map<String, Integer> columns = new HashMap<>();
+    for (int i = 0; i < fields.size(); i++) {
+      columns.put(fields.get(i).trim(), i);
+    }
+    if (!columns.containsKey("title") || !columns.containsKey("url"))
+      throw new IllegalArgumentException("CSV header must include title and url columns");
+    return columns;
+  }
+
+  protected String field(List<String> fields, Map<String, Integer> columns, String name) {
+    Integer i = columns.get(name);
+    return (i != null && i < fields.size()) ? fields.get(i) : null;
+  }
+
+  /**
+   * Splits a single line of CSV into its fields, handling quoted fields (with doubled quotes
+   * as escapes). Quoted fields spanning multiple lines are not supported.
+   * @param line
+   * @return
+   */
+  protected static List<String> parseCsvLine(String line) {
+    List<String> fields = new ArrayList<>();
+    StringBuilder field = new StringBuilder();
+    boolean quoted = false;
+
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+
+      if (quoted) {
+        if (c == '"') {
+          if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+            field.append('"');
+            i++;
+          } else {
+            quoted = false;
+          }
+        } else {
+          field.append(c);
+        }
+      } else if (c == '"') {
+        quoted = true;
+      } else if (c == ',') {
+        fields.add(field.toString());
+        field.setLength(0);
+      } else {
+        field.append(c);
+      }
+    }
+
+    if (quoted)
+      throw new IllegalArgumentException("Unterminated quoted field");
+
+    fields.add(field.toString());
+    return fields;
+  }
+
+}
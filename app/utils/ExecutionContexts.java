@@ -0,0 +1,37 @@
+package utils;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import akka.actor.ActorSystem;
+import scala.concurrent.ExecutionContextExecutor;
+
+/**
+ * The dedicated thread pools on which we run blocking calls, so that they never tie up the
+ * threads that handle requests. Each pool is bounded to roughly the number of connections
+ * available to it (see "contexts" in the application configuration), so that a slow back-end
+ * results in work queueing up rather than in ever more threads waiting on it.
+ */
+@Singleton
+public class ExecutionContexts {
+
+  private final ExecutionContextExecutor jdbc;
+  private final ExecutionContextExecutor cache;
+
+  @Inject
+  public ExecutionContexts(ActorSystem system) {
+    this.jdbc = system.dispatchers().lookup("contexts.jdbc");
+    this.cache = system.dispatchers().lookup("contexts.cache");
+  }
+
+  /** For database queries. */
+  public ExecutionContextExecutor jdbc() {
+    return jdbc;
+  }
+
+  /** For calls to remote cache systems (e.g. Redis). */
+  public ExecutionContextExecutor cache() {
+    return cache;
+  }
+
+}
@@ -0,0 +1,29 @@
+package views.json;
+
+import models.ShortURL;
+import models.json.JsonObject;
+
+/**
+ * The outcome of creating a single link as part of a bulk request. Exactly one of
+ * shortUrl or error will be set.
+ */
+public class JsonBulkShortUrlResult extends JsonObject {
+
+  /** The position of the link in the request (starting from 0). */
+  public Integer index = null;
+  public JsonShortURL shortUrl = null;
+  public String error = null;
+
+  public JsonBulkShortUrlResult() {}
+
+  public JsonBulkShortUrlResult(int index, ShortURL shortUrl) {
+    this.index = index;
+    this.shortUrl = new JsonShortURL(shortUrl);
+  }
+
+  public JsonBulkShortUrlResult(int index, String error) {
+    this.index = index;
+    this.error = error;
+  }
+
+}
@@ -0,0 +1,24 @@
+package views.json;
+
+import java.util.List;
+
+import models.json.JsonObject;
+
+/**
+ * Sent back in response to a bulk link creation request.
+ */
+public class JsonBulkShortUrls extends JsonObject {
+
+  public Integer created = null;
+  public Integer failed = null;
+  public List<JsonBulkShortUrlResult> results = null;
+
+  public JsonBulkShortUrls() {}
+
+  public JsonBulkShortUrls(int created, int failed, List<JsonBulkShortUrlResult> results) {
+    this.created = created;
+    this.failed = failed;
+    this.results = results;
+  }
+
+}
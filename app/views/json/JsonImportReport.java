@@ -0,0 +1,45 @@
+package views.json;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import models.json.JsonObject;
+import transfer.ImportReport;
+
+/**
+ * Sent back in response to a link import.
+ */
+public class JsonImportReport extends JsonObject {
+
+  public Long imported = null;
+  public Long failed = null;
+  public Long durationMillis = null;
+  public Double linksPerSecond = null;
+  public List<JsonLineError> errors = null;
+
+  public JsonImportReport() {}
+
+  public JsonImportReport(ImportReport report) {
+    this.imported = report.getImported();
+    this.failed = report.getFailed();
+    this.durationMillis = report.getDurationMillis();
+    this.linksPerSecond = report.getLinksPerSecond();
+    this.errors = report.getErrors().stream().map(JsonLineError::new).collect(Collectors.toList());
+  }
+
+
+  public static class JsonLineError {
+
+    public Long line = null;
+    public String error = null;
+
+    public JsonLineError() {}
+
+    public JsonLineError(ImportReport.LineError error) {
+      this.line = error.getLine();
+      this.error = error.getError();
+    }
+
+  }
+
+}
@@ -6,11 +6,18 @@ import models.Session;
 public class JsonLoginSuccess extends JsonObject {
   
   public String sessionId = null;
+  /** A signed session token, if token authentication is enabled. */
+  public String token = null;
 
   public JsonLoginSuccess() {}
   
   public JsonLoginSuccess(Session session) {
     this.sessionId = session.getKey();
   }
+  
+  public JsonLoginSuccess(Session session, String token) {
+    this(session);
+    this.token = token;
+  }
 
 }
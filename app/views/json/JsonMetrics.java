@@ -0,0 +1,50 @@
+package views.json;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import metrics.Metrics;
+import metrics.Timer;
+import models.json.JsonObject;
+
+/**
+ * A snapshot of the metrics of the node serving the request.
+ */
+public class JsonMetrics extends JsonObject {
+
+  public Map<String, Long> counters = null;
+  public Map<String, JsonTimer> timers = null;
+  public Map<String, Long> gauges = null;
+
+  public JsonMetrics() {}
+
+  public JsonMetrics(Metrics metrics) {
+    this.counters = new LinkedHashMap<>();
+    metrics.getCounters().forEach((name, counter) -> this.counters.put(name, counter.getCount()));
+    this.timers = new LinkedHashMap<>();
+    metrics.getTimers().forEach((name, timer) -> this.timers.put(name, new JsonTimer(timer)));
+    this.gauges = metrics.getGaugeValues();
+  }
+
+
+  public static class JsonTimer {
+
+    public Long count = null;
+    public Double totalMillis = null;
+    public Double meanMillis = null;
+    public Double maxMillis = null;
+    public Double lastMillis = null;
+
+    public JsonTimer() {}
+
+    public JsonTimer(Timer timer) {
+      this.count = timer.getCount();
+      this.totalMillis = timer.getTotalMillis();
+      this.meanMillis = timer.getMeanMillis();
+      this.maxMillis = timer.getMaxMillis();
+      this.lastMillis = timer.getLastMillis();
+    }
+
+  }
+
+}
@@ -14,10 +14,14 @@ public class JsonShortURLPage extends JsonObject {
   public String sortBy = null;
   public String sortDir = null;
   public List<JsonShortURL> urls = null;
+  /** The cursor from which this page was retrieved (in cursor-based pagination). */
+  public String cursor = null;
+  /** The cursor from which to retrieve the next page, or null if this is the last page. */
+  public String nextCursor = null;
 
   public JsonShortURLPage() {}
   
-  public JsonShortURLPage(int page, int pageSize, long total, String sortBy, String sortDir, List<ShortURL> urls) {
+  public JsonShortURLPage(Integer page, int pageSize, Long total, String sortBy, String sortDir, List<ShortURL> urls) {
     this.page = page;
     this.pageSize = pageSize;
     this.total = total;
@@ -25,5 +29,11 @@ public class JsonShortURLPage extends JsonObject {
     this.sortDir = sortDir;
     this.urls = urls.stream().map((url) -> new JsonShortURL(url)).collect(Collectors.toList());
   }
+  
+  public JsonShortURLPage(String cursor, String nextCursor, int pageSize, Long total, String sortBy, String sortDir, List<ShortURL> urls) {
+    this(null, pageSize, total, sortBy, sortDir, urls);
+    this.cursor = cursor;
+    this.nextCursor = nextCursor;
+  }
 
 }
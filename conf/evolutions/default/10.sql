@@ -0,0 +1,21 @@
+# --- Adding trigram indexes for searching through links.
+
+# --- !Ups
+
+--- pg_trgm ships with PostgreSQL's contrib package. Creating the extension requires superuser
+--- privileges (or, from PostgreSQL 13, ownership of the database), so it may need to be created
+--- by hand beforehand - see the README.
+create extension if not exists pg_trgm;
+
+--- Searches only ever look at primary links, and match with LIKE '%query%' against any of
+--- these columns, which the planner combines with a BitmapOr. Ebean renders its case-insensitive
+--- matches as lower(column) LIKE lower(pattern), so it's the lowercased columns that are indexed.
+create index short_urls_primary_title_trgm_idx on short_urls using gin (lower(title) gin_trgm_ops) where is_primary;
+create index short_urls_primary_short_code_trgm_idx on short_urls using gin (lower(short_code) gin_trgm_ops) where is_primary;
+create index short_urls_primary_url_trgm_idx on short_urls using gin (lower(url) gin_trgm_ops) where is_primary;
+
+# --- !Downs
+
+drop index short_urls_primary_url_trgm_idx;
+drop index short_urls_primary_short_code_trgm_idx;
+drop index short_urls_primary_title_trgm_idx;
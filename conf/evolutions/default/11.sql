@@ -0,0 +1,36 @@
+# --- Supporting keyset (cursor) pagination of links.
+
+# --- !Ups
+
+--- Cursors compare against the sort column, so primary links' sort columns must not contain
+--- nulls. Links without a title are untitled, and links without a hit count have no hits.
+update short_urls set title = '' where title is null;
+update short_urls set hit_count = 0 where hit_count is null;
+--- There's nothing sensible to fill in for a missing short code, URL, creation date or
+--- creator, so such links are taken out of service (but kept, for fixing by hand) by making
+--- them secondary.
+update short_urls set is_primary = false where is_primary and
+  (short_code is null or url is null or created is null or created_by_id is null);
+--- Adding the constraint as NOT VALID only locks the table briefly, and validating it
+--- afterwards doesn't block reads or writes while it scans the table.
+alter table short_urls add constraint short_urls_primary_sortable_check check (not is_primary or
+  (title is not null and short_code is not null and url is not null and hit_count is not null
+    and created is not null and created_by_id is not null)) not valid;
+alter table short_urls validate constraint short_urls_primary_sortable_check;
+
+--- Indexes to seek straight to a cursor's position. URLs are left out, as long URLs could
+--- exceed the maximum size of a btree index entry.
+create index short_urls_primary_title_id_idx on short_urls (title, id) where is_primary;
+create index short_urls_primary_short_code_id_idx on short_urls (short_code, id) where is_primary;
+create index short_urls_primary_hit_count_id_idx on short_urls (hit_count, id) where is_primary;
+create index short_urls_primary_created_id_idx on short_urls (created, id) where is_primary;
+create index short_urls_primary_created_by_id_idx on short_urls (created_by_id, id) where is_primary;
+
+# --- !Downs
+
+drop index short_urls_primary_created_by_id_idx;
+drop index short_urls_primary_created_id_idx;
+drop index short_urls_primary_hit_count_id_idx;
+drop index short_urls_primary_short_code_id_idx;
+drop index short_urls_primary_title_id_idx;
+alter table short_urls drop constraint short_urls_primary_sortable_check;
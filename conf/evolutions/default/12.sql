@@ -0,0 +1,10 @@
+# --- Adding an index for loading the sessions whose tokens have been revoked.
+
+# --- !Ups
+
+--- On startup, each node loads the ended sessions whose tokens haven't expired yet.
+create index sessions_ended_expires_idx on sessions (expires) where expired;
+
+# --- !Downs
+
+drop index sessions_ended_expires_idx;
@@ -0,0 +1,11 @@
+# --- Adding a sequence from which blocks of short codes are reserved.
+
+# --- !Ups
+
+--- Each call to nextval() reserves a block of 100 numbers, which are encoded into short codes
+--- in memory. We start above the range of the old randomly generated codes (0 - 9,999,999).
+create sequence short_code_seq start with 10000000 increment by 100;
+
+# --- !Downs
+
+drop sequence short_code_seq;
@@ -0,0 +1,9 @@
+# --- Adding an index to find the primary link for a short code.
+
+# --- !Ups
+
+create index short_urls_primary_short_code_idx on short_urls (short_code) where is_primary;
+
+# --- !Downs
+
+drop index short_urls_primary_short_code_idx;
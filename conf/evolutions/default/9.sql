@@ -0,0 +1,22 @@
+# --- Adding indexes for the short URL and session lookups done on every request.
+
+# --- !Ups
+
+--- Redirect/link lookups filter on the primary link for a code, ordered by creation date.
+--- This supersedes the (short_code) index, which it can stand in for.
+create index short_urls_primary_short_code_created_idx on short_urls (short_code, created desc) where is_primary;
+drop index short_urls_primary_short_code_idx;
+
+--- Session lookups by key, and for a user's open session, only ever consider unexpired sessions.
+create index sessions_open_session_key_idx on sessions (session_key) where not expired;
+create index sessions_open_user_expires_idx on sessions (user_id, expires desc) where not expired;
+--- For the periodic sweep of sessions which are past their expiry date.
+create index sessions_open_expires_idx on sessions (expires) where not expired;
+
+# --- !Downs
+
+drop index sessions_open_expires_idx;
+drop index sessions_open_user_expires_idx;
+drop index sessions_open_session_key_idx;
+create index short_urls_primary_short_code_idx on short_urls (short_code) where is_primary;
+drop index short_urls_primary_short_code_created_idx;
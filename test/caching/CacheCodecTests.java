@@ -0,0 +1,185 @@
+package caching;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+import org.junit.Test;
+
+import models.RedirectTarget;
+import models.Session;
+import models.ShortURL;
+import models.User;
+
+/**
+ * Round-trip checks for the cache codecs, and for reading entries written by the JSON codec
+ * (which is what was in Redis before the binary codec was introduced).
+ */
+public class CacheCodecTests {
+
+  private final CacheCodec binary = new BinaryCacheCodec();
+  private final CacheCodec json = new JsonCacheCodec();
+
+  /** Dates in the JSON format only have a precision of seconds. */
+  private static final Date CREATED = new Date(1444829348000L);
+
+  protected User newUser() {
+    User user = new User();
+    user.setId(42L);
+    user.setFirstName("Zoë");
+    user.setLastName("Ångström 山田");
+    user.setEmail("zoe@example.com");
+    user.setCreated(CREATED);
+    user.setPasswordHash("never cached");
+    return user;
+  }
+
+  protected ShortURL newUrl() {
+    ShortURL url = new ShortURL();
+    url.setId(1234567890123L);
+    url.setTitle("Ünïcödé title — with emoji 🚀");
+    url.setShortCode("aB3dE");
+    url.setUrl("https://example.com/päth?q=ü");
+    url.setHitCount(-1L);
+    url.setCreated(CREATED);
+    url.setCreatedBy(newUser());
+    url.setPrimary(true);
+    return url;
+  }
+
+  protected void assertUserEquals(User expected, User actual) {
+    assertEquals(expected.getId(), actual.getId());
+    assertEquals(expected.getFirstName(), actual.getFirstName());
+    assertEquals(expected.getLastName(), actual.getLastName());
+    assertEquals(expected.getEmail(), actual.getEmail());
+    assertEquals(expected.getCreated(), actual.getCreated());
+  }
+
+  protected void assertUrlEquals(ShortURL expected, ShortURL actual) {
+    assertEquals(expected.getId(), actual.getId());
+    assertEquals(expected.getTitle(), actual.getTitle());
+    assertEquals(expected.getShortCode(), actual.getShortCode());
+    assertEquals(expected.getUrl(), actual.getUrl());
+    assertEquals(expected.getHitCount(), actual.getHitCount());
+    assertEquals(expected.getCreated(), actual.getCreated());
+    assertEquals(expected.getPrimary(), actual.getPrimary());
+  }
+
+  @Test
+  public void urlRoundTrip() {
+    ShortURL url = newUrl();
+    ShortURL decoded = binary.decodeUrl(binary.encodeUrl(url));
+
+    assertUrlEquals(url, decoded);
+    assertUserEquals(url.getCreatedBy(), decoded.getCreatedBy());
+    // password hashes never make it into the cache
+    assertNull(decoded.getCreatedBy().getPasswordHash());
+  }
+
+  @Test
+  public void urlWithNullsRoundTrip() {
+    ShortURL url = new ShortURL();
+    url.setShortCode("abcde");
+    ShortURL decoded = binary.decodeUrl(binary.encodeUrl(url));
+
+    assertUrlEquals(url, decoded);
+    assertNull(decoded.getId());
+    assertNull(decoded.getTitle());
+    assertNull(decoded.getCreatedBy());
+    assertNull(decoded.getPrimary());
+  }
+
+  @Test
+  public void emptyStringsAreNotNull() {
+    ShortURL url = new ShortURL();
+    url.setTitle("");
+    url.setPrimary(false);
+    ShortURL decoded = binary.decodeUrl(binary.encodeUrl(url));
+
+    assertEquals("", decoded.getTitle());
+    assertEquals(Boolean.FALSE, decoded.getPrimary());
+  }
+
+  @Test
+  public void sessionWithUserRoundTrip() {
+    Session session = new Session();
+    session.setId(99L);
+    session.setUser(newUser());
+    session.setStarted(CREATED);
+    session.setExpires(new Date(CREATED.getTime() + 3600*1000L));
+    session.setKey("kahisdmcZ7NQral0hQ73ZpJqJ63wFSB7mgFQ8g5foL8=");
+    session.setExpired(false);
+
+    Session decoded = binary.decodeSession(binary.encodeSession(session));
+
+    assertEquals(session.getId(), decoded.getId());
+    assertUserEquals(session.getUser(), decoded.getUser());
+    assertEquals(session.getStarted(), decoded.getStarted());
+    assertEquals(session.getExpires(), decoded.getExpires());
+    assertEquals(session.getKey(), decoded.getKey());
+    assertEquals(Boolean.FALSE, decoded.getExpired());
+  }
+
+  @Test
+  public void redirectRoundTrip() {
+    RedirectTarget target = new RedirectTarget("aB3dE", "https://example.com/日本", Long.MAX_VALUE);
+    RedirectTarget decoded = binary.decodeRedirect(binary.encodeRedirect(target));
+
+    assertEquals(target.getShortCode(), decoded.getShortCode());
+    assertEquals(target.getUrl(), decoded.getUrl());
+    assertEquals(target.getVersion(), decoded.getVersion());
+  }
+
+  @Test
+  public void entriesOfOtherTypesAreMisses() {
+    assertNull(binary.decodeSession(binary.encodeUrl(newUrl())));
+    assertNull(binary.decodeUrl(binary.encodeRedirect(new RedirectTarget("a", "b", 1))));
+    assertNull(binary.decodeUrl(null));
+    assertNull(binary.decodeUrl(new byte[0]));
+  }
+
+  @Test
+  public void legacyJsonEntriesAreMissesForTheBinaryCodec() {
+    // as written to Redis before the binary codec existed
+    byte[] legacy = json.encodeUrl(newUrl());
+
+    assertNull(binary.decodeUrl(legacy));
+    assertNull(binary.decodeSession(legacy));
+    assertNull(binary.decodeRedirect(legacy));
+  }
+
+  @Test
+  public void legacyJsonEntriesDecodeWithTheJsonCodec() {
+    byte[] legacy = ("{\"id\":7,\"title\":\"Tïtle\",\"shortCode\":\"abcde\",\"url\":\"http://example.com\"," +
+        "\"hitCount\":3,\"created\":null,\"createdBy\":null,\"primary\":true}").getBytes(StandardCharsets.UTF_8);
+    ShortURL decoded = json.decodeUrl(legacy);
+
+    assertEquals(Long.valueOf(7), decoded.getId());
+    assertEquals("Tïtle", decoded.getTitle());
+    assertEquals("abcde", decoded.getShortCode());
+    assertEquals(Long.valueOf(3), decoded.getHitCount());
+    assertEquals(Boolean.TRUE, decoded.getPrimary());
+
+    // and binary entries are misses for the JSON codec
+    assertNull(json.decodeUrl(binary.encodeUrl(newUrl())));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void truncatedEntriesAreRejected() {
+    byte[] data = binary.encodeUrl(newUrl());
+    byte[] truncated = new byte[data.length / 2];
+    System.arraycopy(data, 0, truncated, 0, truncated.length);
+    binary.decodeUrl(truncated);
+  }
+
+  @Test
+  public void binaryEntriesAreSmallerThanJson() {
+    ShortURL url = newUrl();
+    assertTrue(binary.encodeUrl(url).length < json.encodeUrl(url).length);
+
+    RedirectTarget target = RedirectTarget.of(url);
+    assertTrue(binary.encodeRedirect(target).length < json.encodeRedirect(target).length);
+  }
+
+}
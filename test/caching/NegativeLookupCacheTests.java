@@ -0,0 +1,111 @@
+package caching;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.typesafe.config.ConfigFactory;
+
+import play.Configuration;
+import play.libs.F;
+
+/**
+ * Checks that the negative lookup cache only rules out short codes it has reason to believe
+ * don't exist, including codes created on other nodes and codes whose invalidations were lost.
+ */
+public class NegativeLookupCacheTests {
+
+  /**
+   * Builds a cache manager which only supports invalidation messages, delivering them through
+   * the given listeners (as the cache back-end would, to every node including the sender).
+   * @param bus
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  protected static CacheManager cacheManager(InvalidationListeners bus) {
+    return (CacheManager)Proxy.newProxyInstance(CacheManager.class.getClassLoader(),
+        new Class<?>[] { CacheManager.class },
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "addInvalidationListener":
+              bus.add((String)args[0], (F.Callback<String>)args[1]);
+              return null;
+            case "broadcastInvalidation":
+              bus.dispatch((String)args[0], (String)args[1]);
+              return null;
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+
+  protected static NegativeLookupCache negativeLookups(InvalidationListeners bus) {
+    Map<String, Object> config = new HashMap<>();
+    config.put("shrty.cache.negative.enabled", true);
+    return new NegativeLookupCache(cacheManager(bus), new Configuration(ConfigFactory.parseMap(config)));
+  }
+
+  @Test
+  public void nothingIsRuledOutBeforeTheFirstRebuild() {
+    NegativeLookupCache negativeLookups = negativeLookups(new InvalidationListeners());
+
+    assertFalse(negativeLookups.isMissing("abc", (code) -> false));
+  }
+
+  @Test
+  public void codesNotInTheFilterAreMissing() {
+    NegativeLookupCache negativeLookups = negativeLookups(new InvalidationListeners());
+    negativeLookups.rebuild(2, () -> Arrays.asList("abc", "def").iterator());
+
+    assertFalse(negativeLookups.isMissing("abc", (code) -> false));
+    assertTrue(negativeLookups.isMissing("xyz", (code) -> false));
+    // unless they could have been created since
+    assertFalse(negativeLookups.isMissing("xyz", (code) -> true));
+  }
+
+  @Test
+  public void codesBroadcastTogetherAreAllAdded() {
+    InvalidationListeners bus = new InvalidationListeners();
+    NegativeLookupCache negativeLookups = negativeLookups(bus);
+    negativeLookups.rebuild(1, () -> Arrays.asList("abc").iterator());
+    negativeLookups.recordMiss("ghi");
+
+    bus.dispatch(CacheManager.URL_TOPIC, String.join(CacheManager.KEY_SEPARATOR, "def", "ghi"));
+    assertFalse(negativeLookups.isMissing("def", (code) -> false));
+    assertFalse(negativeLookups.isMissing("ghi", (code) -> false));
+  }
+
+  @Test
+  public void filterIsDroppedWhenInvalidationsMayHaveBeenMissed() {
+    InvalidationListeners bus = new InvalidationListeners();
+    NegativeLookupCache negativeLookups = negativeLookups(bus);
+    negativeLookups.rebuild(1, () -> Arrays.asList("abc").iterator());
+    negativeLookups.recordMiss("ghi");
+
+    bus.dispatch(CacheManager.RESYNC_TOPIC, "invalidations");
+    assertFalse(negativeLookups.isMissing("xyz", (code) -> false));
+    // while recent misses still count
+    assertTrue(negativeLookups.isMissing("ghi", (code) -> false));
+  }
+
+  @Test
+  public void rebuildsOverlappingAResyncAreDiscarded() {
+    InvalidationListeners bus = new InvalidationListeners();
+    NegativeLookupCache negativeLookups = negativeLookups(bus);
+
+    negativeLookups.rebuild(1, () -> {
+      bus.dispatch(CacheManager.RESYNC_TOPIC, "invalidations");
+      return Arrays.asList("abc").iterator();
+    });
+    assertFalse(negativeLookups.isMissing("xyz", (code) -> false));
+
+    negativeLookups.rebuild(1, () -> Arrays.asList("abc").iterator());
+    assertTrue(negativeLookups.isMissing("xyz", (code) -> false));
+  }
+
+}
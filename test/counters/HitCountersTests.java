@@ -0,0 +1,93 @@
+package counters;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+/**
+ * Checks that hits are neither lost nor double-counted when draining runs concurrently with
+ * redirects, including while idle counters are being discarded.
+ */
+public class HitCountersTests {
+
+  @Test
+  public void drainReturnsAndResetsHits() {
+    HitCounters counters = new HitCounters();
+
+    counters.increment("abc");
+    counters.increment("abc");
+    counters.add("def", 5);
+
+    Map<String, Long> deltas = counters.drain();
+    assertEquals(Long.valueOf(2), deltas.get("abc"));
+    assertEquals(Long.valueOf(5), deltas.get("def"));
+    assertTrue(counters.drain().isEmpty());
+  }
+
+  @Test
+  public void idleCountersAreDiscarded() {
+    HitCounters counters = new HitCounters();
+
+    counters.increment("abc");
+    counters.drain();
+    for (int i = 0; i < HitCounters.IDLE_DRAINS; i++) {
+      assertEquals(1, counters.size());
+      counters.drain();
+    }
+    assertEquals(0, counters.size());
+
+    // and a new hit starts a new counter
+    counters.increment("abc");
+    assertEquals(Long.valueOf(1), counters.drain().get("abc"));
+  }
+
+  @Test
+  public void noHitsLostWhileDraining() throws InterruptedException {
+    final HitCounters counters = new HitCounters();
+    final int threads = 8;
+    final int hitsPerThread = 200000;
+    final AtomicBoolean running = new AtomicBoolean(true);
+    final AtomicLong drained = new AtomicLong();
+    final CountDownLatch done = new CountDownLatch(threads);
+    List<Thread> workers = new ArrayList<>();
+
+    for (int t = 0; t < threads; t++) {
+      Thread worker = new Thread(() -> {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < hitsPerThread; i++) {
+          // lots of sparsely hit codes, so that counters keep going idle and being discarded
+          counters.increment(Integer.toString(random.nextInt(5000)));
+        }
+        done.countDown();
+      });
+      workers.add(worker);
+      worker.start();
+    }
+
+    Thread drainer = new Thread(() -> {
+      while (running.get()) {
+        counters.drain().values().forEach(drained::addAndGet);
+      }
+    });
+    drainer.start();
+
+    done.await();
+    running.set(false);
+    drainer.join();
+
+    // collect whatever is left, including from the last discarded counters
+    counters.drain().values().forEach(drained::addAndGet);
+    counters.drain().values().forEach(drained::addAndGet);
+
+    assertEquals((long)threads * hitsPerThread, drained.get());
+  }
+
+}
@@ -0,0 +1,158 @@
+package crypto;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.typesafe.config.ConfigFactory;
+
+import metrics.Metrics;
+import play.Configuration;
+import play.libs.F;
+
+/**
+ * Checks password hashing and verification (including legacy, tampered and malformed hashes),
+ * when hashes are due for an upgrade, and that the hashing pool turns work away once full.
+ */
+public class PasswordHasherTests {
+
+  private final List<Callable<F.Promise<Void>>> stopHooks = new ArrayList<>();
+
+  protected PasswordHasher hasher(int iterations, int threads, int queueSize) {
+    Map<String, Object> config = new HashMap<>();
+    config.put("shrty.auth.passwords.iterations", iterations);
+    config.put("shrty.auth.passwords.threads", threads);
+    config.put("shrty.auth.passwords.queueSize", queueSize);
+    return new PasswordHasher(stopHooks::add, new Configuration(ConfigFactory.parseMap(config)), new Metrics());
+  }
+
+  protected PasswordHasher hasher(int iterations) {
+    return hasher(iterations, 1, 10);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    for (Callable<F.Promise<Void>> hook: stopHooks)
+      hook.call();
+  }
+
+  @Test
+  public void hashesVerify() throws Exception {
+    PasswordHasher hasher = hasher(1000);
+    String hash = hasher.hash("12345");
+
+    assertTrue(hash.startsWith(PasswordHasher.PREFIX + "$1000$"));
+    assertTrue(hasher.verify("12345", hash));
+    assertFalse(hasher.verify("12346", hash));
+    assertFalse(hasher.verify("", hash));
+    // every hash gets its own salt
+    assertNotEquals(hash, hasher.hash("12345"));
+    assertFalse(hasher.needsRehash(hash));
+  }
+
+  @Test
+  public void legacyHashesVerifyAndNeedRehash() throws Exception {
+    PasswordHasher hasher = hasher(1000);
+    String legacy = HashProvider.base64HashOf("12345");
+
+    assertTrue(hasher.verify("12345", legacy));
+    assertFalse(hasher.verify("12346", legacy));
+    assertTrue(hasher.needsRehash(legacy));
+  }
+
+  @Test
+  public void weakerHashesVerifyAndNeedRehash() throws Exception {
+    String weaker = hasher(500).hash("12345");
+    PasswordHasher hasher = hasher(1000);
+
+    // the iterations are taken from the stored hash, so it still verifies
+    assertTrue(hasher.verify("12345", weaker));
+    assertTrue(hasher.needsRehash(weaker));
+    // while stronger ones are left as they are
+    assertFalse(hasher.needsRehash(hasher(2000).hash("12345")));
+  }
+
+  @Test
+  public void tamperedHashesAreRejected() throws Exception {
+    PasswordHasher hasher = hasher(1000);
+    String[] parts = hasher.hash("12345").split("\\$");
+    String[] other = hasher.hash("12345").split("\\$");
+
+    // fewer iterations
+    assertFalse(hasher.verify("12345", String.join("$", parts[0], "999", parts[2], parts[3])));
+    // another hash's salt
+    assertFalse(hasher.verify("12345", String.join("$", parts[0], parts[1], other[2], parts[3])));
+    // a changed hash
+    char first = parts[3].charAt(0);
+    String changed = (first == 'A' ? 'B' : 'A') + parts[3].substring(1);
+    assertFalse(hasher.verify("12345", String.join("$", parts[0], parts[1], parts[2], changed)));
+  }
+
+  @Test
+  public void malformedHashesAreRejected() throws Exception {
+    PasswordHasher hasher = hasher(1000);
+    String[] malformed = {
+        "",
+        "pbkdf2$",
+        "pbkdf2$1000$c2FsdA==",
+        "pbkdf2$1000$c2FsdA==$aGFzaA==$extra",
+        "pbkdf2$many$c2FsdA==$aGFzaA==",
+        "pbkdf2$0$c2FsdA==$aGFzaA==",
+        "pbkdf2$-1$c2FsdA==$aGFzaA==",
+        "pbkdf2$1000$$aGFzaA==",
+        "pbkdf2$1000$not base64!$aGFzaA==",
+        "pbkdf2$1000$c2FsdA==$not base64!",
+    };
+
+    assertFalse(hasher.verify("12345", null));
+    for (String stored: malformed)
+      assertFalse(stored, hasher.verify("12345", stored));
+
+    // hashes whose work factor can't be read are never considered strong enough
+    assertTrue(hasher.needsRehash(null));
+    assertTrue(hasher.needsRehash("pbkdf2$"));
+    assertTrue(hasher.needsRehash("pbkdf2$many$c2FsdA==$aGFzaA=="));
+    assertTrue(hasher.needsRehash("pbkdf2$1000$c2FsdA==$aGFzaA==$extra"));
+  }
+
+  @Test
+  public void fullQueueRejectsWork() throws Exception {
+    PasswordHasher hasher = hasher(1000, 1, 1);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Runnable blocker = () -> {
+      started.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    };
+
+    try {
+      // one task on the pool's only thread, and one in its queue
+      hasher.executionContext().execute(blocker);
+      started.await();
+      hasher.executionContext().execute(blocker);
+
+      try {
+        hasher.executionContext().execute(blocker);
+        fail("Expected the hashing pool to reject work once its queue is full");
+      } catch (RejectedExecutionException e) {
+        // expected
+      }
+    } finally {
+      release.countDown();
+    }
+  }
+
+}
@@ -2,6 +2,7 @@ package integration;
 
 import static org.junit.Assert.*;
 
+import org.hashids.Hashids;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -9,6 +10,7 @@ import org.junit.Test;
 import com.avaje.ebean.Ebean;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 
 import actors.HitCounterActor;
 import models.Session;
@@ -26,7 +28,10 @@ import play.libs.Json;
 import play.libs.ws.WS;
 import play.libs.ws.WSResponse;
 import play.test.WithServer;
+import repos.ShortCodeAllocator;
 import security.SecurityConstants;
+import security.SessionTokens;
+import views.json.JsonBulkShortUrls;
 import views.json.JsonGenericMessage;
 import views.json.JsonLoginSuccess;
 import views.json.JsonShortURL;
@@ -87,9 +92,11 @@ public class APITests extends WithServer {
     // user/auth tests
     createUsers();
     authTests();
+    tokenTests();
     
     // short URL-related tests
     shortUrlTests();
+    bulkShortUrlTests();
   }
   
   protected void createUsers() {
@@ -156,6 +163,37 @@ public class APITests extends WithServer {
     assertEquals(403, response.getStatus());
   }
   
+  protected void tokenTests() {
+    WSResponse response;
+    
+    // log in, and get a token along with the session ID
+    response = postRequest("/api/login", Json.toJson(new JsonLogin("gmichaels@gmail.com", "12345")));
+    assertEquals(200, response.getStatus());
+    JsonLoginSuccess jsonLogin = parseJson(JsonLoginSuccess.class, response.getBody());
+    assertNotNull(jsonLogin.token);
+    assertTrue(jsonLogin.token.startsWith(SessionTokens.TOKEN_PREFIX));
+    
+    // the token authenticates requests in place of the session ID
+    response = getRequest(String.format("/api/user/%s", gmichaels.getEmail()), jsonLogin.token);
+    assertEquals(200, response.getStatus());
+    compareUsers(parseJson(JsonUser.class, response.getBody()), gmichaels);
+    
+    // a tampered token doesn't
+    String tampered = jsonLogin.token.replaceFirst("^t1\\.\\d+\\.", String.format("t1.%d.", manderson.getId()));
+    response = getRequest(String.format("/api/user/%s", gmichaels.getEmail()), tampered);
+    assertEquals(403, response.getStatus());
+    
+    // log out with the token
+    response = postRequest("/api/logout", Json.toJson(new JsonGenericMessage("Logout")), jsonLogin.token);
+    assertEquals(200, response.getStatus());
+    
+    // after which neither the token nor the session ID are accepted
+    response = getRequest(String.format("/api/user/%s", gmichaels.getEmail()), jsonLogin.token);
+    assertEquals(403, response.getStatus());
+    response = getRequest(String.format("/api/user/%s", gmichaels.getEmail()), jsonLogin.sessionId);
+    assertEquals(403, response.getStatus());
+  }
+  
   protected void compareUsers(JsonUser jsonUser, User user) {
     assertEquals(user.getId(), jsonUser.id);
     assertEquals(user.getEmail(), jsonUser.email);
@@ -260,6 +298,42 @@ public class APITests extends WithServer {
   }
   
   
+  protected void bulkShortUrlTests() {
+    String sessionId = doAPILogin("manderson@gmail.com", "12345", 200);
+    // a code in the range of generated codes which hasn't been handed out yet
+    String reservedCode = new Hashids(SecurityConstants.SHORTCODE_HASH_SALT,
+        SecurityConstants.SHORTCODE_LENGTH,
+        SecurityConstants.SHORTCODE_CHARSET).encode(ShortCodeAllocator.SEQUENCE_START * 100);
+    
+    ArrayNode items = Json.newArray();
+    items.add(Json.toJson(new JsonAddShortUrl("Bulk generated", urlFor("/login"), null)));
+    items.add(Json.toJson(new JsonAddShortUrl("Bulk custom", urlFor("/about"), "BulkCode")));
+    items.add(Json.toJson(new JsonAddShortUrl("Bulk invalid", urlFor("/about"), "not a code!")));
+    items.add(Json.toJson(new JsonAddShortUrl("Bulk reserved", urlFor("/about"), reservedCode)));
+    items.add(Json.toJson(new JsonAddShortUrl("Bulk missing URL", null, null)));
+    
+    // the bad entries are reported individually, and the rest are still created
+    WSResponse response = postRequest("/api/shorturl/bulk", items, sessionId);
+    assertEquals(200, response.getStatus());
+    JsonBulkShortUrls bulk = parseJson(JsonBulkShortUrls.class, response.getBody());
+    assertEquals(Integer.valueOf(2), bulk.created);
+    assertEquals(Integer.valueOf(3), bulk.failed);
+    assertNotNull(bulk.results.get(0).shortUrl);
+    assertEquals("BulkCode", bulk.results.get(1).shortUrl.shortCode);
+    assertEquals("Invalid short code", bulk.results.get(2).error);
+    assertEquals("Reserved short code", bulk.results.get(3).error);
+    assertEquals("Missing URL", bulk.results.get(4).error);
+    
+    response = getRequest("/BulkCode");
+    assertEquals(200, response.getStatus());
+    assertEquals(urlFor("/about"), response.getUri().toString());
+    
+    // reserved codes can't be used for single links either
+    response = postRequest("/api/shorturl", Json.toJson(new JsonAddShortUrl("Reserved", urlFor("/about"), reservedCode)), sessionId);
+    assertEquals(400, response.getStatus());
+  }
+  
+  
   protected String doAPILogin(String email, String password, int expectedStatus) {
     WSResponse response = postRequest("/api/login", Json.toJson(new JsonLogin(email, password)));
     assertEquals(expectedStatus, response.getStatus());
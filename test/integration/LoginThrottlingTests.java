@@ -0,0 +1,97 @@
+package integration;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.avaje.ebean.Ebean;
+
+import crypto.PasswordHasher;
+import models.Session;
+import models.User;
+import models.json.JsonLogin;
+import models.json.JsonSignup;
+import play.Application;
+import play.Environment;
+import play.Logger;
+import play.Mode;
+import play.inject.guice.GuiceApplicationBuilder;
+import play.libs.Json;
+import play.libs.ws.WS;
+import play.libs.ws.WSResponse;
+import play.test.WithServer;
+
+/**
+ * Checks that logins and signups are turned away with a 503 once the password hashing pool's
+ * queue is full, rather than piling up behind it.
+ */
+public class LoginThrottlingTests extends WithServer {
+
+  private static final Logger.ALogger logger = Logger.of(LoginThrottlingTests.class);
+  private final int TIMEOUT = 5000;
+
+  @Override
+  protected int providePort() {
+    return 3334;
+  }
+
+  @Override
+  protected Application provideApplication() {
+    return new GuiceApplicationBuilder()
+        .in(Environment.simple())
+        .in(Mode.TEST)
+        // a single hashing thread with room for a single login in its queue
+        .configure("shrty.auth.passwords.threads", 1)
+        .configure("shrty.auth.passwords.queueSize", 1)
+        .build();
+  }
+
+  @After
+  public void tearDown() {
+    Ebean.delete(Ebean.find(Session.class).findList());
+    Ebean.delete(Ebean.find(User.class).findList());
+  }
+
+  protected WSResponse postRequest(String relPath, Object body) {
+    logger.debug(String.format("POST (unauthenticated): %s", relPath));
+    return WS.url(String.format("http://localhost:%d%s", testServer.port(), relPath))
+        .post(Json.toJson(body))
+        .get(TIMEOUT);
+  }
+
+  @Test
+  public void loginsAreRejectedWhenHashingPoolIsFull() throws Exception {
+    assertEquals(200, postRequest("/api/user", new JsonSignup("Michael", "Anderson", "manderson@gmail.com", "12345")).getStatus());
+
+    PasswordHasher passwords = app.injector().instanceOf(PasswordHasher.class);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Runnable blocker = () -> {
+      started.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    };
+
+    try {
+      // tie up the hashing thread, and fill its queue
+      passwords.executionContext().execute(blocker);
+      started.await();
+      passwords.executionContext().execute(blocker);
+
+      assertEquals(503, postRequest("/api/login", new JsonLogin("manderson@gmail.com", "12345")).getStatus());
+      assertEquals(503, postRequest("/api/user", new JsonSignup("Gary", "Michaels", "gmichaels@gmail.com", "12345")).getStatus());
+    } finally {
+      release.countDown();
+    }
+
+    // once the pool has caught up, logins go through again
+    assertEquals(200, postRequest("/api/login", new JsonLogin("manderson@gmail.com", "12345")).getStatus());
+  }
+
+}
@@ -0,0 +1,246 @@
+package integration;
+
+import static org.junit.Assert.*;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.Query;
+import com.avaje.ebean.Transaction;
+
+import models.ShortURL;
+import models.User;
+import play.Application;
+import play.Environment;
+import play.Logger;
+import play.Mode;
+import play.inject.guice.GuiceApplicationBuilder;
+import play.test.WithApplication;
+import repos.AuthRepo;
+import repos.LinkRepo;
+
+/**
+ * Checks that the queries run on the hot paths (cache-miss redirects and session lookups)
+ * are served by index scans. The SQL checked is the SQL Ebean actually generates for the
+ * repositories' queries, and it's planned the way the application runs it: as a prepared
+ * statement with bound parameters, whose generic plan (the one reused once PgJDBC switches
+ * to server-side statements) can't rely on the parameters' values. Sequential scans are left
+ * enabled, against tables of a realistic size, so that the planner has to actually prefer
+ * the indexes.
+ */
+public class QueryPlanTests extends WithApplication {
+
+  private static final Logger.ALogger logger = Logger.of(QueryPlanTests.class);
+
+  /** Number of links in the fixture, of which the first fifth have since been replaced. */
+  private static final int FIXTURE_LINKS = 50000;
+  /** Number of sessions in the fixture, of which 1 in 100 is still open. */
+  private static final int FIXTURE_SESSIONS = 50000;
+  /** How many times a statement is run before PostgreSQL (prior to 12) considers a generic plan. */
+  private static final int CUSTOM_PLAN_RUNS = 5;
+
+  private int fixtureUserId;
+
+  @Override
+  protected Application provideApplication() {
+    return new GuiceApplicationBuilder()
+        .in(Environment.simple())
+        .in(Mode.TEST)
+        .build();
+  }
+
+  @Before
+  public void createFixture() {
+    fixtureUserId = Ebean.createSqlQuery(
+        "insert into users (first_name, last_name, email, password_hash, created) " +
+        "values ('Query', 'Plans', 'query-plans@shrty.io', '', now()) returning id")
+        .findUnique()
+        .getInteger("id");
+
+    Ebean.createSqlUpdate(
+        "insert into short_urls (title, short_code, url, hit_count, created, created_by_id, is_primary) " +
+        "select 'Fixture link ' || i, 'qp' || (i % :codes), 'https://example.com/' || i, i % 1000, " +
+        "now() - (i || ' seconds')::interval, :user, i > :replaced " +
+        "from generate_series(1, :links) as i")
+        .setParameter("codes", FIXTURE_LINKS * 4 / 5)
+        .setParameter("replaced", FIXTURE_LINKS / 5)
+        .setParameter("user", fixtureUserId)
+        .setParameter("links", FIXTURE_LINKS)
+        .execute();
+
+    Ebean.createSqlUpdate(
+        "insert into sessions (user_id, started, expires, session_key, expired) " +
+        "select :user, now() - interval '1 day', now() + ((i % 200) - 100) * interval '1 hour', " +
+        "md5(i::text), i % 100 <> 0 " +
+        "from generate_series(1, :sessions) as i")
+        .setParameter("user", fixtureUserId)
+        .setParameter("sessions", FIXTURE_SESSIONS)
+        .execute();
+
+    Ebean.createSqlUpdate("analyze short_urls").execute();
+    Ebean.createSqlUpdate("analyze sessions").execute();
+  }
+
+  @After
+  public void dropFixture() {
+    Ebean.createSqlUpdate("delete from sessions where user_id = :user")
+        .setParameter("user", fixtureUserId)
+        .execute();
+    Ebean.createSqlUpdate("delete from short_urls where created_by_id = :user")
+        .setParameter("user", fixtureUserId)
+        .execute();
+    Ebean.createSqlUpdate("delete from users where id = :user")
+        .setParameter("user", fixtureUserId)
+        .execute();
+  }
+
+  /**
+   * Runs the given query, and then EXPLAINs the SQL Ebean generated for it.
+   * @param query
+   * @param binds The query's bind parameters, in order.
+   * @return The generic query plan, one line per node.
+   */
+  protected String explain(Query<?> query, Object... binds) {
+    query.findList();
+    return explain(query.getGeneratedSql(), binds);
+  }
+
+  /**
+   * Prepares the given statement, and EXPLAINs its generic plan.
+   * @param sql A statement with JDBC-style (?) placeholders.
+   * @param binds The statement's bind parameters, in order.
+   * @return The generic query plan, one line per node.
+   */
+  protected String explain(String sql, Object... binds) {
+    StringBuilder prepared = new StringBuilder();
+    int param = 0;
+
+    for (char c : sql.toCharArray()) {
+      if (c == '?')
+        prepared.append('$').append(++param);
+      else
+        prepared.append(c);
+    }
+    assertEquals("Bind parameters for: " + sql, param, binds.length);
+
+    List<String> args = new ArrayList<>();
+    for (Object bind : binds)
+      args.add(toLiteral(bind));
+    String execute = "execute plan_check" + (args.isEmpty() ? "" : "(" + String.join(", ", args) + ")");
+
+    // the statement is only ever run inside this transaction, which is rolled back
+    Transaction txn = Ebean.beginTransaction();
+    Connection conn = txn.getConnection();
+
+    try (Statement stmt = conn.createStatement()) {
+      stmt.execute("prepare plan_check as " + prepared);
+
+      if (conn.getMetaData().getDatabaseMajorVersion() >= 12) {
+        stmt.execute("set local plan_cache_mode = force_generic_plan");
+      } else {
+        for (int i = 0; i < CUSTOM_PLAN_RUNS; i++)
+          stmt.execute(execute);
+      }
+
+      List<String> lines = new ArrayList<>();
+      try (ResultSet rs = stmt.executeQuery("explain " + execute)) {
+        while (rs.next())
+          lines.add(rs.getString(1));
+      }
+      stmt.execute("deallocate plan_check");
+
+      String plan = String.join("\n", lines);
+      logger.debug(String.format("Query plan for: %s\n%s", prepared, plan));
+      return plan;
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    } finally {
+      txn.end();
+    }
+  }
+
+  protected String toLiteral(Object value) {
+    if (value instanceof Number || value instanceof Boolean)
+      return value.toString();
+    if (value instanceof Date)
+      value = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSSZ").format((Date)value);
+    return "'" + value.toString().replace("'", "''") + "'";
+  }
+
+  protected void assertUsesIndex(String indexName, String plan) {
+    assertFalse(plan, plan.contains("Seq Scan"));
+    assertTrue(plan, plan.contains(indexName));
+  }
+
+  protected LinkRepo linkRepo() {
+    return app.injector().instanceOf(LinkRepo.class);
+  }
+
+  protected AuthRepo authRepo() {
+    return app.injector().instanceOf(AuthRepo.class);
+  }
+
+  @Test
+  public void redirectLookupUsesIndex() {
+    assertUsesIndex("short_urls_primary_short_code_created_idx", explain(
+        linkRepo().redirectByShortCodeQuery("qp12"), "qp12"));
+  }
+
+  @Test
+  public void linkLookupUsesIndex() {
+    assertUsesIndex("short_urls_primary_short_code_created_idx", explain(
+        linkRepo().linkByShortCodeQuery("qp12"), "qp12"));
+  }
+
+  @Test
+  public void makeSecondaryUsesIndex() {
+    assertUsesIndex("short_urls_primary_short_code_created_idx", explain(
+        LinkRepo.DEMOTE_PRIMARY_SQL, "qp12"));
+  }
+
+  @Test
+  public void searchUsesTrigramIndexes() {
+    Query<ShortURL> query = linkRepo().buildLinkFetchExpr("link 123", 0, 10, "created", "desc").query();
+    // searches need to count their matches, which is where the filter alone decides the plan
+    query.findRowCount();
+    String pattern = "%link 123%";
+    String plan = explain(query.getGeneratedSql(), pattern, pattern, pattern);
+    assertUsesIndex("short_urls_primary_title_trgm_idx", plan);
+    assertUsesIndex("short_urls_primary_short_code_trgm_idx", plan);
+    assertUsesIndex("short_urls_primary_url_trgm_idx", plan);
+  }
+
+  @Test
+  public void sessionKeyLookupUsesIndex() {
+    String key = "0123456789abcdef";
+    assertUsesIndex("sessions_open_session_key_idx", explain(
+        authRepo().sessionByKeyQuery(key), key));
+  }
+
+  @Test
+  public void openSessionLookupUsesIndex() {
+    User user = Ebean.find(User.class, fixtureUserId);
+    Query<?> query = authRepo().openSessionQuery(user);
+    query.findList();
+    // the expiry date bound is "now" as of running the query, which is near enough for planning
+    assertUsesIndex("sessions_open_user_expires_idx", explain(
+        query.getGeneratedSql(), fixtureUserId, new Date()));
+  }
+
+  @Test
+  public void openSessionsScanUsesIndex() {
+    assertUsesIndex("sessions_open_", explain(authRepo().openSessionsQuery()));
+  }
+
+}
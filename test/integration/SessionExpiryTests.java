@@ -0,0 +1,94 @@
+package integration;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.avaje.ebean.Ebean;
+
+import models.Session;
+import models.User;
+import play.Application;
+import play.Environment;
+import play.Mode;
+import play.inject.guice.GuiceApplicationBuilder;
+import play.test.WithApplication;
+import repos.AuthRepo;
+import repos.SessionExpiryQueue;
+
+/**
+ * Checks that the periodic expiry of sessions leaves sessions which have been extended in
+ * the cache open (persisting their new expiry dates), and expires the rest.
+ */
+public class SessionExpiryTests extends WithApplication {
+
+  private final int TIMEOUT = 5000;
+  private AuthRepo authRepo;
+  private SessionExpiryQueue expiryQueue;
+  private User user;
+
+  @Override
+  protected Application provideApplication() {
+    return new GuiceApplicationBuilder()
+        .in(Environment.simple())
+        .in(Mode.TEST)
+        .build();
+  }
+
+  @Before
+  public void setUp() {
+    authRepo = app.injector().instanceOf(AuthRepo.class);
+    expiryQueue = app.injector().instanceOf(SessionExpiryQueue.class);
+    user = authRepo.createUser("Session", "Expiry", "session-expiry@shrty.io", "12345").get(TIMEOUT);
+  }
+
+  @After
+  public void tearDown() {
+    Ebean.delete(Ebean.find(Session.class).where().eq("user", user).findList());
+    Ebean.delete(user);
+  }
+
+  /**
+   * Makes the given session look as though its expiry date has passed, as far as the database
+   * and this node's expiry schedule are concerned.
+   * @param session
+   */
+  protected void backdate(Session session) {
+    Ebean.createSqlUpdate("update sessions set expires = now() - interval '1 minute' where id = :id")
+        .setParameter("id", session.getId())
+        .execute();
+    expiryQueue.schedule(session.getId(), session.getKey(), System.currentTimeMillis() - 60000);
+  }
+
+  @Test
+  public void sessionsExtendedInCacheArePersistedNotExpired() throws Exception {
+    // the freshly created session is cached with an expiry date in the future
+    Session session = authRepo.createSession(user);
+    backdate(session);
+
+    assertEquals(0, authRepo.checkExpiredSessions());
+
+    Session stored = authRepo.findSessionById(session.getId());
+    assertFalse(stored.getExpired());
+    assertTrue(stored.getExpires().getTime() > System.currentTimeMillis());
+    // the cache's expiry date is derived from its TTL, so allow for some drift
+    assertEquals(session.getExpires().getTime(), stored.getExpires().getTime(), 1000);
+
+    // and it's due again at its new expiry date, rather than now
+    assertTrue(expiryQueue.pollDue(System.currentTimeMillis()).isEmpty());
+  }
+
+  @Test
+  public void sessionsNotExtendedAreExpired() throws Exception {
+    Session session = authRepo.createSession(user);
+    authRepo.uncacheSession(session);
+    backdate(session);
+
+    assertEquals(1, authRepo.checkExpiredSessions());
+    assertTrue(authRepo.findSessionById(session.getId()).getExpired());
+    assertNull(authRepo.getCachedSession(session.getKey()));
+  }
+
+}
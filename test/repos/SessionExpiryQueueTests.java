@@ -0,0 +1,95 @@
+package repos;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+/**
+ * Checks that sessions come due in expiry order, and that rescheduled or removed sessions
+ * leave nothing behind in the heap that could expire them early.
+ */
+public class SessionExpiryQueueTests {
+
+  protected static List<Long> ids(List<SessionExpiryQueue.Entry> entries) {
+    return entries.stream().map(SessionExpiryQueue.Entry::getId).collect(Collectors.toList());
+  }
+
+  @Test
+  public void pollDueReturnsSessionsInExpiryOrder() {
+    SessionExpiryQueue queue = new SessionExpiryQueue();
+
+    queue.schedule(3, "c", 300);
+    queue.schedule(1, "a", 100);
+    queue.schedule(4, "d", 400);
+    queue.schedule(2, "b", 200);
+
+    assertTrue(queue.pollDue(99).isEmpty());
+    assertEquals(Arrays.asList(1L, 2L, 3L), ids(queue.pollDue(300)));
+    assertEquals(1, queue.size());
+    // polled sessions are no longer tracked
+    assertTrue(queue.pollDue(300).isEmpty());
+    assertEquals(Arrays.asList(4L), ids(queue.pollDue(1000)));
+    assertEquals(0, queue.size());
+  }
+
+  @Test
+  public void rescheduledSessionsAreOnlyDueAtTheirNewTime() {
+    SessionExpiryQueue queue = new SessionExpiryQueue();
+
+    queue.schedule(1, "a", 100);
+    queue.schedule(2, "b", 200);
+    queue.schedule(1, "a", 500);
+    assertEquals(2, queue.size());
+
+    // the stale entry at 100 is skipped
+    assertEquals(Arrays.asList(2L), ids(queue.pollDue(200)));
+
+    List<SessionExpiryQueue.Entry> due = queue.pollDue(500);
+    assertEquals(1, due.size());
+    assertEquals(1L, due.get(0).getId());
+    assertEquals("a", due.get(0).getKey());
+    assertEquals(500L, due.get(0).getExpires());
+  }
+
+  @Test
+  public void sessionsCanBeBroughtForward() {
+    SessionExpiryQueue queue = new SessionExpiryQueue();
+
+    queue.schedule(1, "a", 500);
+    queue.schedule(1, "a", 100);
+
+    assertEquals(Arrays.asList(1L), ids(queue.pollDue(100)));
+    // the superseded entry at 500 doesn't expire the session a second time
+    assertTrue(queue.pollDue(500).isEmpty());
+  }
+
+  @Test
+  public void removedSessionsNeverComeDue() {
+    SessionExpiryQueue queue = new SessionExpiryQueue();
+
+    queue.schedule(1, "a", 100);
+    queue.schedule(2, "b", 100);
+    queue.remove(1);
+    assertEquals(1, queue.size());
+
+    assertEquals(Arrays.asList(2L), ids(queue.pollDue(100)));
+    assertEquals(0, queue.size());
+  }
+
+  @Test
+  public void scheduleIfAbsentKeepsTheKnownSchedule() {
+    SessionExpiryQueue queue = new SessionExpiryQueue();
+
+    queue.schedule(1, "a", 500);
+    queue.scheduleIfAbsent(1, "a", 100);
+    queue.scheduleIfAbsent(2, "b", 100);
+
+    assertEquals(Arrays.asList(2L), ids(queue.pollDue(100)));
+    assertEquals(Arrays.asList(1L), ids(queue.pollDue(500)));
+  }
+
+}
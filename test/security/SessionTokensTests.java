@@ -0,0 +1,176 @@
+package security;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.typesafe.config.ConfigFactory;
+
+import caching.CacheManager;
+import caching.InvalidationListeners;
+import play.Configuration;
+import play.libs.F;
+
+/**
+ * Checks that session tokens are only accepted untampered, unexpired and unrevoked, and that
+ * revoking a session's tokens on one node revokes them on the others.
+ */
+public class SessionTokensTests {
+
+  private static final long HOUR = 60 * 60 * 1000L;
+
+  /**
+   * Builds a cache manager which only supports invalidation messages, delivering them through
+   * the given listeners (as the cache back-end would, to every node including the sender).
+   * @param bus
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  protected static CacheManager cacheManager(InvalidationListeners bus) {
+    return (CacheManager)Proxy.newProxyInstance(CacheManager.class.getClassLoader(),
+        new Class<?>[] { CacheManager.class },
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "addInvalidationListener":
+              bus.add((String)args[0], (F.Callback<String>)args[1]);
+              return null;
+            case "broadcastInvalidation":
+              bus.dispatch((String)args[0], (String)args[1]);
+              return null;
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+
+  protected static SessionTokens tokens(CacheManager cacheManager, boolean enabled, String secret) {
+    Map<String, Object> config = new HashMap<>();
+    config.put("shrty.auth.tokens.enabled", enabled);
+    config.put("play.crypto.secret", secret);
+    return new SessionTokens(cacheManager, new Configuration(ConfigFactory.parseMap(config)));
+  }
+
+  protected static SessionTokens tokens() {
+    return tokens(cacheManager(new InvalidationListeners()), true, "test-secret");
+  }
+
+  @Test
+  public void issuedTokensVerify() {
+    SessionTokens tokens = tokens();
+    long expires = System.currentTimeMillis() + HOUR;
+    String token = tokens.issue(12, 34, expires);
+
+    assertTrue(tokens.isToken(token));
+    SessionTokens.Claims claims = tokens.verify(token);
+    assertNotNull(claims);
+    assertEquals(12, claims.getUserId());
+    assertEquals(34, claims.getSessionId());
+    assertEquals(expires, claims.getExpires());
+  }
+
+  @Test
+  public void tamperedTokensAreRejected() {
+    SessionTokens tokens = tokens();
+    long expires = System.currentTimeMillis() + HOUR;
+    String token = tokens.issue(12, 34, expires);
+    String signature = token.substring(token.lastIndexOf('.') + 1);
+
+    // someone else's user ID, or a later expiry date, under the original signature
+    assertNull(tokens.verify(String.format("t1.13.34.%d.%s", expires, signature)));
+    assertNull(tokens.verify(String.format("t1.12.34.%d.%s", expires + HOUR, signature)));
+    // a corrupted signature
+    char last = token.charAt(token.length() - 1);
+    assertNull(tokens.verify(token.substring(0, token.length() - 1) + (last == 'A' ? 'B' : 'A')));
+    assertNull(tokens.verify(token.substring(0, token.lastIndexOf('.') + 1)));
+    // a token signed with another secret
+    assertNull(tokens.verify(tokens(cacheManager(new InvalidationListeners()), true, "other-secret").issue(12, 34, expires)));
+  }
+
+  @Test
+  public void malformedTokensAreRejected() {
+    SessionTokens tokens = tokens();
+
+    assertNull(tokens.verify(null));
+    assertNull(tokens.verify(""));
+    assertNull(tokens.verify("t1."));
+    assertNull(tokens.verify("t1.12.34"));
+    assertNull(tokens.verify("not-a-token"));
+    // correctly signed, but not carrying the right details
+    assertNull(tokens.verify("t1.12.34." + tokens.sign("t1.12.34")));
+    assertNull(tokens.verify("t1.a.b.c." + tokens.sign("t1.a.b.c")));
+  }
+
+  @Test
+  public void expiredTokensAreRejected() {
+    SessionTokens tokens = tokens();
+    assertNull(tokens.verify(tokens.issue(12, 34, System.currentTimeMillis() - 1)));
+  }
+
+  @Test
+  public void tokensAreRejectedWhenDisabled() {
+    SessionTokens enabled = tokens();
+    SessionTokens disabled = tokens(cacheManager(new InvalidationListeners()), false, "test-secret");
+    String token = enabled.issue(12, 34, System.currentTimeMillis() + HOUR);
+
+    assertFalse(disabled.isEnabled());
+    assertNull(disabled.verify(token));
+  }
+
+  @Test
+  public void revokedSessionsTokensAreRejected() {
+    InvalidationListeners bus = new InvalidationListeners();
+    CacheManager cacheManager = cacheManager(bus);
+    SessionTokens tokens = tokens(cacheManager, true, "test-secret");
+    long expires = System.currentTimeMillis() + HOUR;
+    String revoked = tokens.issue(12, 34, expires);
+    String other = tokens.issue(12, 35, expires);
+
+    tokens.revoke(cacheManager, 34, expires);
+    assertNull(tokens.verify(revoked));
+    assertNotNull(tokens.verify(other));
+  }
+
+  @Test
+  public void revocationsReachOtherNodes() {
+    InvalidationListeners bus = new InvalidationListeners();
+    CacheManager cacheManager = cacheManager(bus);
+    SessionTokens node1 = tokens(cacheManager, true, "test-secret");
+    SessionTokens node2 = tokens(cacheManager, true, "test-secret");
+    long expires = System.currentTimeMillis() + HOUR;
+    String token = node1.issue(12, 34, expires);
+
+    assertNotNull(node2.verify(token));
+    node1.revoke(cacheManager, 34, expires);
+    assertNull(node2.verify(token));
+  }
+
+  @Test
+  public void loadedRevocationsAreRejected() {
+    SessionTokens tokens = tokens();
+    long expires = System.currentTimeMillis() + HOUR;
+    String token = tokens.issue(12, 34, expires);
+    Map<Long, Long> revoked = new HashMap<>();
+    revoked.put(34L, expires);
+
+    assertFalse(tokens.isRevocationsLoaded());
+    tokens.loadRevocations(revoked);
+    assertTrue(tokens.isRevocationsLoaded());
+    assertNull(tokens.verify(token));
+  }
+
+  @Test
+  public void malformedRevocationsAreIgnored() {
+    InvalidationListeners bus = new InvalidationListeners();
+    SessionTokens tokens = tokens(cacheManager(bus), true, "test-secret");
+    String token = tokens.issue(12, 34, System.currentTimeMillis() + HOUR);
+
+    bus.dispatch(CacheManager.SESSION_TOPIC, "34");
+    bus.dispatch(CacheManager.SESSION_TOPIC, "abc:def");
+    assertNotNull(tokens.verify(token));
+  }
+
+}